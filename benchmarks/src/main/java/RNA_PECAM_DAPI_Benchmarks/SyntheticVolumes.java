@@ -0,0 +1,160 @@
+package RNA_PECAM_DAPI_Benchmarks;
+
+import RNA_PECAM_DAPI_Tools.NucleiResults;
+import RNA_PECAM_DAPI_Tools.Nucleus;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Seeded synthetic volumes standing for the Airyscan channels
+ * - foci : small ellipsoids (1-2 voxels radius in XY, 1 in Z) in a binary mask
+ * - nuclei : larger labelled ellipsoids
+ * - rois : ovals covering part of the field
+ * densities are given as objects per million voxels
+ * @author phm
+ */
+public class SyntheticVolumes {
+
+    private final int width, height, depth;
+    private final Calibration cal;
+    private final Random random;
+
+
+    public SyntheticVolumes(int width, int height, int depth, Calibration cal, long seed) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.cal = cal;
+        this.random = new Random(seed);
+    }
+
+
+    private int count(double perMVoxel) {
+        return Math.max(1, (int)Math.round(perMVoxel * width * height * depth / 1e6));
+    }
+
+
+    /**
+     * Draw an ellipsoid with value in slices
+     */
+    private void drawEllipsoid(Object[] slices, int cx, int cy, int cz, int rxy, int rz, int value) {
+        for (int z = Math.max(0, cz-rz); z <= Math.min(depth-1, cz+rz); z++) {
+            double dz = (rz == 0) ? 0 : (double)(z-cz)/rz;
+            for (int y = Math.max(0, cy-rxy); y <= Math.min(height-1, cy+rxy); y++) {
+                double dy = (double)(y-cy)/rxy;
+                for (int x = Math.max(0, cx-rxy); x <= Math.min(width-1, cx+rxy); x++) {
+                    double dx = (double)(x-cx)/rxy;
+                    if (dx*dx + dy*dy + dz*dz > 1)
+                        continue;
+                    if (slices[z] instanceof byte[])
+                        ((byte[])slices[z])[x + y*width] = (byte)value;
+                    else
+                        ((short[])slices[z])[x + y*width] = (short)value;
+                }
+            }
+        }
+    }
+
+
+    private ImagePlus toImagePlus(String title, Object[] slices) {
+        ImageStack stack = new ImageStack(width, height);
+        for (Object pixels : slices) {
+            if (pixels instanceof byte[])
+                stack.addSlice(new ByteProcessor(width, height, (byte[])pixels));
+            else
+                stack.addSlice(new ShortProcessor(width, height, (short[])pixels, null));
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setCalibration(cal);
+        return(img);
+    }
+
+
+    /**
+     * Binary foci mask (0/255) as given by the DOG threshold
+     * @param fociPerMVoxel
+     * @return mask
+     */
+    public ImagePlus fociMask(double fociPerMVoxel) {
+        Object[] slices = new Object[depth];
+        for (int z = 0; z < depth; z++)
+            slices[z] = new byte[width*height];
+        for (int i = 0; i < count(fociPerMVoxel); i++)
+            drawEllipsoid(slices, random.nextInt(width), random.nextInt(height), random.nextInt(depth), 1 + random.nextInt(2), 1, 255);
+        return(toImagePlus("foci", slices));
+    }
+
+
+    /**
+     * Gene channel, noisy background with bright foci
+     * @param fociPerMVoxel
+     * @return image
+     */
+    public ImagePlus geneImage(double fociPerMVoxel) {
+        Object[] slices = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            byte[] pixels = new byte[width*height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (byte)(10 + random.nextInt(20));
+            slices[z] = pixels;
+        }
+        for (int i = 0; i < count(fociPerMVoxel); i++)
+            drawEllipsoid(slices, random.nextInt(width), random.nextInt(height), random.nextInt(depth), 1 + random.nextInt(2), 1, 200);
+        return(toImagePlus("gene", slices));
+    }
+
+
+    /**
+     * Nuclei as Cellpose would give them, later nuclei overwrite earlier ones
+     * @param nucleiPerMVoxel
+     * @param nbGenes
+     * @return nuclei results, index set
+     */
+    public NucleiResults nuclei(double nucleiPerMVoxel, int nbGenes) {
+        Object[] slices = new Object[depth];
+        for (int z = 0; z < depth; z++)
+            slices[z] = new short[width*height];
+        int nbNuclei = Math.min(65535, count(nucleiPerMVoxel));
+        for (int i = 1; i <= nbNuclei; i++)
+            drawEllipsoid(slices, random.nextInt(width), random.nextInt(height), random.nextInt(depth), 6 + random.nextInt(5), 3, i);
+        ImagePlus labels = toImagePlus("nuclei", slices);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(labels));
+        ArrayList<Nucleus> nuclei = new ArrayList<>();
+        for (Object3DInt obj : pop.getObjects3DInt()) {
+            obj.setVoxelSizeXY(cal.pixelWidth);
+            obj.setVoxelSizeZ(cal.pixelDepth);
+            nuclei.add(new Nucleus(obj));
+        }
+        NucleiResults results = new NucleiResults(nuclei, nbGenes);
+        for (int n = 0; n < results.size; n++)
+            results.index[n] = n + 1;
+        return(results);
+    }
+
+
+    /**
+     * Oval rois spread over the field
+     * @param nbRois
+     * @return rois
+     */
+    public Roi[] rois(int nbRois) {
+        Roi[] rois = new Roi[nbRois];
+        for (int i = 0; i < nbRois; i++) {
+            int w = width/4 + random.nextInt(width/4);
+            int h = height/4 + random.nextInt(height/4);
+            rois[i] = new OvalRoi(random.nextInt(width - w), random.nextInt(height - h), w, h);
+        }
+        return(rois);
+    }
+}
@@ -0,0 +1,207 @@
+package RNA_PECAM_DAPI_Benchmarks;
+
+import RNA_PECAM_DAPI_Tools.BitMask;
+import RNA_PECAM_DAPI_Tools.CpuFilters;
+import RNA_PECAM_DAPI_Tools.NucleiResults;
+import RNA_PECAM_DAPI_Tools.ObjectMeasurements;
+import RNA_PECAM_DAPI_Tools.Tools;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * JMH harness of the Tools hot paths on synthetic volumes
+ * CPU only, no GPU and no Cellpose needed
+ * run : java -jar target/benchmarks.jar -rf json -rff results.json
+ * sizes and densities : -p width=1024 -p depth=60 -p fociPerMVoxel=500 ...
+ * @author phm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class ToolsBenchmark {
+
+    // XY size in pixels, images are square
+    @Param({"512"})
+    public int width;
+
+    @Param({"30"})
+    public int depth;
+
+    @Param({"100", "1000"})
+    public double fociPerMVoxel;
+
+    @Param({"20"})
+    public double nucleiPerMVoxel;
+
+    @Param({"3"})
+    public int nbRois;
+
+    // foci volume range, dialog defaults (µm3)
+    @Param({"0.05"})
+    public double minFoci;
+
+    @Param({"50"})
+    public double maxFoci;
+
+    Tools tools;
+    ImagePlus fociMask, geneImage;
+    NucleiResults nuclei;
+    Objects3DIntPopulation fociPop, roisPop;
+    Roi[] rois;
+    File objectsFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tools = new Tools();
+        tools.filterBackend = "CPU";
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = 0.0706;
+        cal.pixelDepth = 0.2;
+        cal.setUnit("microns");
+        tools.cal = cal;
+        tools.pixVol = (float)(cal.pixelWidth * cal.pixelHeight * cal.pixelDepth);
+
+        SyntheticVolumes volumes = new SyntheticVolumes(width, width, depth, cal, 42);
+        fociMask = volumes.fociMask(fociPerMVoxel);
+        geneImage = volumes.geneImage(fociPerMVoxel);
+        nuclei = volumes.nuclei(nucleiPerMVoxel, tools.nbGenes);
+        rois = volumes.rois(nbRois);
+        fociPop = tools.getPopFromImage(fociMask, cal);
+        roisPop = tools.getObjectsFromRoi(geneImage, rois);
+        objectsFile = File.createTempFile("RNA_PECAM_DAPI_bench", "_Objects.tif");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tools.closeImages(fociMask);
+        tools.closeImages(geneImage);
+        objectsFile.delete();
+    }
+
+
+    /**
+     * Deep copy of a population, objects and voxels are new
+     * @param pop
+     * @return copy
+     */
+    static Objects3DIntPopulation copy(Objects3DIntPopulation pop) {
+        Objects3DIntPopulation copy = new Objects3DIntPopulation();
+        for (Object3DInt obj : pop.getObjects3DInt()) {
+            Object3DInt objCopy = new Object3DInt(obj.getLabel());
+            objCopy.setVoxelSizeXY(obj.getVoxelSizeXY());
+            objCopy.setVoxelSizeZ(obj.getVoxelSizeZ());
+            for (Object3DPlane plane : obj.getObject3DPlanes()) {
+                Object3DPlane planeCopy = new Object3DPlane(plane.getZPlane());
+                for (VoxelInt v : plane.getVoxels())
+                    planeCopy.addVoxel(new VoxelInt(v.getX(), v.getY(), v.getZ(), v.getValue()));
+                objCopy.addPlane(planeCopy);
+            }
+            copy.addObject(objCopy);
+        }
+        return(copy);
+    }
+
+
+    /**
+     * Fresh copy of the foci population and its objects,
+     * popFilterSize removes objects and findColocPop relabels them in place
+     */
+    @State(Scope.Thread)
+    public static class FociState {
+        Objects3DIntPopulation pop;
+
+        @Setup(Level.Invocation)
+        public void copy(ToolsBenchmark bench) {
+            pop = ToolsBenchmark.copy(bench.fociPop);
+        }
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation getPopFromImage() {
+        return(tools.getPopFromImage(fociMask, tools.cal));
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation getPopFromImageFiltered() {
+        return(tools.getPopFromImage(fociMask, tools.cal, minFoci, maxFoci));
+    }
+
+
+    @Benchmark
+    public BitMask dogThresholdMask() {
+        return(tools.dogThresholdMask(geneImage, 1, 2, "MaxEntropy"));
+    }
+
+
+    @Benchmark
+    public BitMask dogThresholdMaskHalf() {
+        return(CpuFilters.dogThresholdMaskHalf(geneImage, 1, 2, "MaxEntropy"));
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation popFilterSize(FociState state) {
+        tools.popFilterSize(state.pop, minFoci, maxFoci);
+        return(state.pop);
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation findColocPop(FociState state) throws IOException {
+        return(tools.findColocPop(nuclei, state.pop, 1));
+    }
+
+
+    @Benchmark
+    public ObjectMeasurements measureWithIntensity() {
+        return(new ObjectMeasurements(fociPop, geneImage));
+    }
+
+
+    @Benchmark
+    public double findPopVolume() {
+        return(tools.findPopVolume(fociPop));
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation getObjectsFromRoi() {
+        return(tools.getObjectsFromRoi(geneImage, rois));
+    }
+
+
+    @Benchmark
+    public void saveGenesImage() throws IOException {
+        tools.saveGenesImage(nuclei.nuclei, fociPop, fociPop, roisPop, geneImage, objectsFile.getPath());
+        tools.awaitObjectsImage(objectsFile.getPath());
+    }
+}
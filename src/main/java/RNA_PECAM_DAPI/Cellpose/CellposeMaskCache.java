@@ -0,0 +1,155 @@
+package RNA_PECAM_DAPI.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * On-disk cache of Cellpose label masks
+ * key = SHA-256 of the Cellpose input pixels and of all settings changing the masks,
+ * masks are stored as raw stacks (see RawImageIO), least recently used files are
+ * evicted when the cache grows over its size limit
+ */
+public class CellposeMaskCache {
+
+    private final File dir;
+    private final long maxBytes;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+
+    public CellposeMaskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Cache key of an input image and its settings
+     * @param imp single time point image given to Cellpose
+     * @param settings
+     * @return hex key
+     */
+    public String key(ImagePlus imp, CellposeTaskSettings settings) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(settings.describe().getBytes(StandardCharsets.UTF_8));
+        ImageStack stack = imp.getStack();
+        int size = imp.getWidth() * imp.getHeight();
+        int bytesPerPixel = (imp.getBitDepth() == 8) ? 1 : (imp.getBitDepth() == 16) ? 2 : 4;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(16, size * bytesPerPixel)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(imp.getWidth()).putInt(imp.getHeight()).putInt(stack.getSize()).putInt(imp.getBitDepth());
+        buffer.flip();
+        md.update(buffer);
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            buffer.clear();
+            if (pixels instanceof byte[])
+                buffer.put((byte[])pixels);
+            else if (pixels instanceof short[])
+                buffer.asShortBuffer().put((short[])pixels);
+            else if (pixels instanceof float[])
+                buffer.asFloatBuffer().put((float[])pixels);
+            else
+                buffer.asIntBuffer().put((int[])pixels);
+            buffer.position(0);
+            buffer.limit(size * bytesPerPixel);
+            md.update(buffer);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest())
+            sb.append(String.format("%02x", b));
+        return(sb.toString());
+    }
+
+
+    private File file(String key) {
+        return new File(dir, key + ".raw");
+    }
+
+
+    /**
+     * Cached masks
+     * @param key
+     * @return masks stack, null if not cached
+     */
+    public ImageStack get(String key) {
+        File f = file(key);
+        if (f.exists()) {
+            try {
+                ImageStack masks = RawImageIO.readLabels(f);
+                f.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return(masks);
+            } catch (IOException e) {
+                System.out.println("Unreadable cached masks "+f+" : "+e.getMessage());
+                f.delete();
+            }
+        }
+        misses.incrementAndGet();
+        return(null);
+    }
+
+
+    /**
+     * Store masks, file is written aside then moved so readers never see a partial file
+     * @param key
+     * @param masks
+     */
+    public void put(String key, ImageStack masks) {
+        try {
+            File tmp = File.createTempFile(key, ".part", dir);
+            RawImageIO.write(tmp, masks);
+            Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException e) {
+            System.out.println("Can't cache Cellpose masks : "+e.getMessage());
+        }
+    }
+
+
+    /**
+     * Remove least recently used files over the size limit
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".raw"));
+        if (files == null)
+            return;
+        long total = 0;
+        for (File f : files)
+            total += f.length();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > maxBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+
+    /**
+     * Hit/miss report
+     * @return report line
+     */
+    public String report() {
+        int h = hits.get(), m = misses.get();
+        double rate = (h + m == 0) ? 0 : 100.0 * h / (h + m);
+        return String.format("Cellpose mask cache : %d hits, %d misses (%.0f%% hits)", h, m, rate);
+    }
+}
@@ -15,6 +15,9 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,29 +26,46 @@ public class CellposeSegmentImgPlusAdvanced {
     CellposeTaskSettings settings;
     ImagePlus imp;
     ImagePlus cellpose_imp;
+    CellposeMaskCache cache;
     
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
         this.settings = settings;
         this.imp = imp;
     }
     
+    /**
+     * Look masks up in cache before running Cellpose (single time point images only)
+     */
+    public CellposeSegmentImgPlusAdvanced setCache(CellposeMaskCache cache) {
+        this.cache = cache;
+        return this;
+    }
+    
     public ImagePlus run() {
         
         Calibration cal = imp.getCalibration();
-
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
+        
+        String cacheKey = null;
+        if (cache != null && imp.getNFrames() == 1) {
+            cacheKey = cache.key(imp, settings);
+            ImageStack masks = cache.get(cacheKey);
+            if (masks != null) {
+                System.out.println("Cellpose masks read from cache");
+                cellpose_imp = new ImagePlus(imp.getShortTitle() + "-cellpose", masks);
+                cellpose_imp.setCalibration(cal);
+                return cellpose_imp;
             }
         }
 
+        // Private exchange folder, concurrent runs on the same host never share files
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = Files.createTempDirectory(Paths.get(IJ.getDirectory("Temp")), "cellposeTemp-").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
         // Add temp folder to the settings
         settings.setDatasetDir(cellposeTempDir.toString());
 
@@ -56,75 +76,123 @@ public class CellposeSegmentImgPlusAdvanced {
                 settings.use3D(false);
         }
 
+        try {
+            // Raw buffers exchange with the Cellpose worker, TIFF files with the command line
+            if (settings.useWorker && imp.getNChannels() == 1) {
+                try {
+                    cellpose_imp = runRaw(cellposeTempDir);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage()+", running Cellpose as a new process");
+                    settings.useWorker(false);
+                    cellpose_imp = runTiff(cellposeTempDir);
+                    settings.useWorker(true);
+                }
+            }
+            else
+                cellpose_imp = runTiff(cellposeTempDir);
+            cellpose_imp.setCalibration(cal);
+            cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
+            if (cacheKey != null)
+                cache.put(cacheKey, cellpose_imp.getStack());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // Delete the created files and folder
+            File[] contents = cellposeTempDir.listFiles();
+            if (contents != null) {
+                for (File f : contents) {
+                    f.delete();
+                }
+            }
+            cellposeTempDir.delete();
+        }
+        return cellpose_imp;
+    }
+    
+    
+    /**
+     * Exchange images and masks with the Cellpose worker as memory mapped raw stacks
+     * no TIFF encoding, frames are written straight from the image stack
+     */
+    private ImagePlus runRaw(File cellposeTempDir) throws IOException {
+        int impFrames = imp.getNFrames();
+        List<File> inputs = new ArrayList<>();
+        List<File> outputs = new ArrayList<>();
+        for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+            File input = new File(cellposeTempDir, "t" + t_idx + ".raw");
+            RawImageIO.write(input, imp, t_idx);
+            inputs.add(input);
+            outputs.add(new File(cellposeTempDir, "t" + t_idx + "_cp_masks.raw"));
+        }
+
+        CellposeWorker.get(settings).segmentRaw(settings, inputs, outputs);
+
+        // frames are appended to a single stack
+        ImageStack masks = null;
+        for (File output : outputs) {
+            ImageStack frame = RawImageIO.readLabels(output);
+            if (masks == null)
+                masks = new ImageStack(frame.getWidth(), frame.getHeight());
+            for (int z = 1; z <= frame.getSize(); z++)
+                masks.addSlice(frame.getProcessor(z));
+        }
+        ImagePlus masksImp = new ImagePlus(imp.getShortTitle() + "-cellpose", masks);
+        masksImp.setDimensions(1, masks.getSize() / impFrames, impFrames);
+        return masksImp;
+    }
+    
+    
+    /**
+     * Exchange images and masks with Cellpose as TIFF files
+     */
+    private ImagePlus runTiff(File cellposeTempDir) throws Exception {
         // Settings are done, we can now process the imp with Cellpose
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
         
-        try {
-            // Can't process time-lapse directly, so we'll save one time-point after another
-            int impFrames = imp.getNFrames();
+        // Can't process time-lapse directly, so we'll save one time-point after another
+        int impFrames = imp.getNFrames();
 
-            // We'll use lists to store paths of saved input, output masks and outlines
-            List<File> t_imp_paths = new ArrayList<>();
-            List<File> cellpose_masks_paths = new ArrayList<>();
-            List<File> cellpose_outlines_paths = new ArrayList<>();
+        // We'll use lists to store paths of output masks
+        List<File> cellpose_masks_paths = new ArrayList<>();
 
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                // Duplicate all channels and all z-slices for a defined time-point
-                ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
-                // Save the current t_imp into the cellposeTempDir
-                File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
-                FileSaver fs = new FileSaver(t_imp);
-                fs.saveAsTiff(t_imp_path.toString());
-                System.out.println(t_imp_path.toString());
-                // Add to list of paths to delete at the end of operations
-                t_imp_paths.add(t_imp_path);
+        for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+            // Duplicate all channels and all z-slices for a defined time-point
+            ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
+            // Save the current t_imp into the cellposeTempDir
+            File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
+            FileSaver fs = new FileSaver(t_imp);
+            fs.saveAsTiff(t_imp_path.toString());
+            System.out.println(t_imp_path.toString());
 
-                // Prepare path of the cellpose mask output
-                File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
-                cellpose_masks_paths.add(cellpose_imp_path);
-                // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej), so we'll delete it too
-                // (to generate ROIs from the label image we can use https://github.com/BIOP/ijp-larome)
-                File cellpose_outlines_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_outlines" + ".txt");
-                cellpose_outlines_paths.add(cellpose_outlines_path);
-            }
+            // Prepare path of the cellpose mask output
+            File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
+            cellpose_masks_paths.add(cellpose_imp_path);
+        }
 
-            // Run CellPose
-            cellposeTask.run();
+        // Run CellPose
+        cellposeTask.run();
 
-            // Open all the cellpose_mask and store each imp within an ArrayList
-            ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
-                // make sure to make a 16-bit imp
-                // (issue with time-lapse, first frame have less than 254 objects and latest have more)
-                if (cellpose_t_imp.getBitDepth() != 16) {
-                    if (cellpose_t_imp.getNSlices() > 1) {
-                        new ImageConverter(cellpose_t_imp).convertToGray16();
-                    } else {
-                        cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
-                    }
+        // Open all the cellpose_mask and store each imp within an ArrayList
+        ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
+        for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+            ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
+            // make sure to make a 16-bit imp
+            // (issue with time-lapse, first frame have less than 254 objects and latest have more)
+            if (cellpose_t_imp.getBitDepth() != 16) {
+                if (cellpose_t_imp.getNSlices() > 1) {
+                    new ImageConverter(cellpose_t_imp).convertToGray16();
+                } else {
+                    cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
                 }
-                imps.add(cellpose_t_imp.duplicate());
             }
-            // Convert the ArrayList to an imp
-            // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
-            ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
-            cellpose_imp.setCalibration(cal);
-            cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
-
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
-            }
-            cellposeTempDir.delete();
-       
-        } catch (Exception e) {
-            e.printStackTrace();
+            imps.add(cellpose_t_imp);
         }
-        return cellpose_imp;
+        // Convert the ArrayList to an imp
+        // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
+        if (impFrames == 1)
+            return imps.get(0);
+        ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
+        return Concatenator.run(impsArray);
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package RNA_PECAM_DAPI.Cellpose;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class CellposeTask {
@@ -75,6 +76,14 @@ public class CellposeTask {
 
         options.add("--no_npy");
         
+        if (settings.useWorker) {
+            try {
+                CellposeWorker.get(settings).segment(settings);
+                return;
+            } catch (IOException e) {
+                System.out.println(e.getMessage()+", running Cellpose as a new process");
+            }
+        }
         
         Cellpose.execute(options, settings, null);
     }
@@ -24,6 +24,7 @@ public class CellposeTaskSettings {
     boolean omni = false;
     boolean cluster = false;
     boolean verbose = false;
+    boolean useWorker = false;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -122,5 +123,20 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings useWorker(boolean useWorker) {
+        this.useWorker = useWorker;
+        return this;
+    }
+    
+    /**
+     * Every setting that changes the masks, used as part of the mask cache key
+     */
+    String describe() {
+        return "model=" + model + ";ch1=" + ch1 + ";ch2=" + ch2 + ";diameter=" + diameter
+                + ";flow=" + flow_threshold + ";cellprob=" + cellprob_threshold + ";stitch=" + stitch_threshold
+                + ";version=" + version + ";3D=" + use3D + ";fast=" + useFastMode + ";resample=" + useResample
+                + ";omni=" + omni + ";cluster=" + cluster;
+    }
        
 }
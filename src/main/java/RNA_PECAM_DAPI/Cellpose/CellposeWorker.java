@@ -0,0 +1,217 @@
+package RNA_PECAM_DAPI.Cellpose;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import static java.io.File.separatorChar;
+
+import ij.IJ;
+
+
+/**
+ * Cellpose python process kept alive between images
+ * python, torch and the model are loaded once, jobs are sent as JSON lines on stdin
+ * (see resources/cellpose_worker.py), the worker is restarted if it died
+ * one worker per Cellpose environment
+ */
+public class CellposeWorker {
+
+    private static final HashMap<String, CellposeWorker> workers = new HashMap<>();
+    private static Path script;
+
+    static {
+        // don't leave python processes behind if the batch ends abnormally
+        Runtime.getRuntime().addShutdownHook(new Thread(CellposeWorker::shutdownAll));
+    }
+
+    private final CellposeTaskSettings settings;
+    private Process process;
+    private BufferedWriter jobs;
+    private BufferedReader replies;
+
+
+    private CellposeWorker(CellposeTaskSettings settings) {
+        this.settings = settings;
+    }
+
+
+    /**
+     * Worker of the settings environment, created on first call
+     */
+    static synchronized CellposeWorker get(CellposeTaskSettings settings) {
+        return workers.computeIfAbsent(settings.cellposeEnvDirectory, k -> new CellposeWorker(settings));
+    }
+
+
+    /**
+     * Stop all workers, to be called at the end of a batch
+     */
+    public static synchronized void shutdownAll() {
+        for (CellposeWorker worker : workers.values())
+            worker.stop();
+        workers.clear();
+    }
+
+
+    private static synchronized Path script() throws IOException {
+        if (script == null) {
+            script = Files.createTempFile("cellpose_worker", ".py");
+            script.toFile().deleteOnExit();
+            try (InputStream in = CellposeWorker.class.getResourceAsStream("/cellpose_worker.py")) {
+                Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return script;
+    }
+
+
+    private String pythonPath() {
+        if (IJ.isWindows())
+            return settings.envType.equals("venv") ? new File(settings.cellposeEnvDirectory, "Scripts\\python.exe").toString()
+                    : new File(settings.cellposeEnvDirectory, "python.exe").toString();
+        return settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
+    }
+
+
+    private void start() throws IOException {
+        List<String> cmd = Arrays.asList(pythonPath(), "-u", script().toString());
+        System.out.println("Starting Cellpose worker "+cmd.toString().replace(",", ""));
+        process = new ProcessBuilder(cmd).start();
+        jobs = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        replies = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+        // forward cellpose logs
+        Thread t = new Thread(Thread.currentThread().getName() + "-cellpose-worker") {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                try {
+                    for (String line = stdErr.readLine(); line != null; line = stdErr.readLine())
+                        System.out.println(line);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        String ready = replies.readLine();
+        if (!"READY".equals(ready)) {
+            stop();
+            throw new IOException("Cellpose worker did not start ("+ready+")");
+        }
+    }
+
+
+    private void stop() {
+        if (process == null)
+            return;
+        try {
+            jobs.write("QUIT\n");
+            jobs.flush();
+        } catch (IOException e) {
+            // already dead
+        }
+        process.destroy();
+        process = null;
+    }
+
+
+    /**
+     * Segment all images of the settings dataset directory
+     * @return number of images segmented
+     * @throws IOException if the worker can't run the job
+     */
+    int segment(CellposeTaskSettings settings) throws IOException {
+        return runJob(jobJson(settings, null, null));
+    }
+
+
+    /**
+     * Segment raw stacks (see RawImageIO) into raw label stacks
+     * @param settings
+     * @param inputs
+     * @param outputs
+     * @return number of images segmented
+     * @throws IOException if the worker can't run the job
+     */
+    int segmentRaw(CellposeTaskSettings settings, List<File> inputs, List<File> outputs) throws IOException {
+        return runJob(jobJson(settings, inputs, outputs));
+    }
+
+
+    /**
+     * Send job to the worker
+     * the worker is (re)started if needed, a job is retried once after a restart
+     */
+    private synchronized int runJob(String job) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (process == null || !process.isAlive())
+                start();
+            String reply;
+            try {
+                jobs.write(job);
+                jobs.newLine();
+                jobs.flush();
+                reply = replies.readLine();
+            } catch (IOException e) {
+                reply = null;
+            }
+            if (reply == null) {
+                System.out.println("Cellpose worker died, restarting");
+                stop();
+                continue;
+            }
+            if (reply.startsWith("OK"))
+                return Integer.parseInt(reply.substring(3).trim());
+            throw new IOException("Cellpose worker : "+reply);
+        }
+        throw new IOException("Cellpose worker died twice");
+    }
+
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+
+    private static String quote(List<File> files) {
+        StringBuilder sb = new StringBuilder("[");
+        for (File f : files) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(quote(f.toString()));
+        }
+        return sb.append("]").toString();
+    }
+
+
+    static String jobJson(CellposeTaskSettings settings, List<File> inputs, List<File> outputs) {
+        String json = "{\"dir\": " + quote(String.valueOf(settings.datasetDir))
+                + ", \"model\": " + quote(settings.model)
+                + ", \"chan\": " + settings.ch1
+                + ", \"chan2\": " + settings.ch2
+                + ", \"diameter\": " + settings.diameter
+                + ", \"flow_threshold\": " + settings.flow_threshold
+                + ", \"cellprob_threshold\": " + settings.cellprob_threshold
+                + ", \"stitch_threshold\": " + settings.stitch_threshold
+                + ", \"do_3D\": " + (settings.use3D && settings.stitch_threshold <= 0 ? "true" : "false")
+                + ", \"use_gpu\": " + settings.useGpu
+                + ", \"resample\": " + settings.useResample;
+        if (inputs != null)
+            json += ", \"inputs\": " + quote(inputs) + ", \"outputs\": " + quote(outputs);
+        return json + "}";
+    }
+}
@@ -0,0 +1,153 @@
+package RNA_PECAM_DAPI.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Uncompressed z stack exchanged with the Cellpose worker through memory mapped files
+ * header (little endian, 24 bytes) : magic "CPRAW1\0\0", dtype, depth, height, width
+ * then the voxels in z, y, x order
+ * dtype : 1 uint8, 2 uint16, 3 float32, 4 uint32
+ */
+public class RawImageIO {
+
+    static final byte[] MAGIC = {'C', 'P', 'R', 'A', 'W', '1', 0, 0};
+    static final int HEADER = 24;
+    static final int UINT8 = 1, UINT16 = 2, FLOAT32 = 3, UINT32 = 4;
+
+
+    static int bytesPerVoxel(int dtype) {
+        switch (dtype) {
+            case UINT8 : return 1;
+            case UINT16 : return 2;
+            default : return 4;
+        }
+    }
+
+
+    /**
+     * Write z slices of one channel and one frame
+     * @param file
+     * @param imp
+     * @param frame 1-based
+     * @throws java.io.IOException
+     */
+    public static void write(File file, ImagePlus imp, int frame) throws IOException {
+        int depth = imp.getNSlices();
+        ImageStack stack = imp.getStack();
+        Object[] slices = new Object[depth];
+        for (int z = 0; z < depth; z++)
+            slices[z] = stack.getPixels(imp.getStackIndex(1, z+1, frame));
+        write(file, slices, imp.getWidth(), imp.getHeight(), imp.getBitDepth());
+    }
+
+
+    /**
+     * Write all slices of a stack
+     * @param file
+     * @param stack
+     * @throws java.io.IOException
+     */
+    public static void write(File file, ImageStack stack) throws IOException {
+        Object[] slices = new Object[stack.getSize()];
+        for (int z = 0; z < slices.length; z++)
+            slices[z] = stack.getPixels(z+1);
+        write(file, slices, stack.getWidth(), stack.getHeight(), stack.getBitDepth());
+    }
+
+
+    private static void write(File file, Object[] slices, int width, int height, int bitDepth) throws IOException {
+        int depth = slices.length;
+        int dtype = (bitDepth == 8) ? UINT8 : (bitDepth == 16) ? UINT16 : FLOAT32;
+        long sliceBytes = (long)width * height * bytesPerVoxel(dtype);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(dtype).putInt(depth).putInt(height).putInt(width);
+            header.flip();
+            fc.write(header, 0);
+            for (int z = 0; z < depth; z++) {
+                MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_WRITE, HEADER + z * sliceBytes, sliceBytes);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                switch (dtype) {
+                    case UINT8 :
+                        map.put((byte[])slices[z]);
+                        break;
+                    case UINT16 :
+                        map.asShortBuffer().put((short[])slices[z]);
+                        break;
+                    default :
+                        map.asFloatBuffer().put((float[])slices[z]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Read a label stack written by the worker
+     * uint8/uint16 labels come back as 16-bit, uint32 labels as 32-bit
+     * @param file
+     * @return stack, calibration not set
+     * @throws java.io.IOException
+     */
+    public static ImageStack readLabels(File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            fc.read(header, 0);
+            header.flip();
+            for (byte b : MAGIC)
+                if (header.get() != b)
+                    throw new IOException(file+" is not a raw exchange file");
+            int dtype = header.getInt(), depth = header.getInt(), height = header.getInt(), width = header.getInt();
+            int size = width * height;
+            long sliceBytes = (long)size * bytesPerVoxel(dtype);
+            ImageStack stack = new ImageStack(width, height);
+            for (int z = 0; z < depth; z++) {
+                MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, HEADER + z * sliceBytes, sliceBytes);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                ImageProcessor ip;
+                switch (dtype) {
+                    case UINT8 : {
+                        short[] pixels = new short[size];
+                        for (int i = 0; i < size; i++)
+                            pixels[i] = (short)(map.get(i) & 0xff);
+                        ip = new ShortProcessor(width, height, pixels, null);
+                        break;
+                    }
+                    case UINT16 : {
+                        short[] pixels = new short[size];
+                        map.asShortBuffer().get(pixels);
+                        ip = new ShortProcessor(width, height, pixels, null);
+                        break;
+                    }
+                    case UINT32 : {
+                        float[] pixels = new float[size];
+                        for (int i = 0; i < size; i++)
+                            pixels[i] = map.getInt(4*i) & 0xffffffffL;
+                        ip = new FloatProcessor(width, height, pixels);
+                        break;
+                    }
+                    default : {
+                        float[] pixels = new float[size];
+                        map.asFloatBuffer().get(pixels);
+                        ip = new FloatProcessor(width, height, pixels);
+                    }
+                }
+                stack.addSlice(ip);
+            }
+            return(stack);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package RNA_PECAM_DAPI_Tools;
+
+import RNA_PECAM_DAPI.Cellpose.CellposeWorker;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.ArrayUtils;
+
+
+/**
+ * Analysis of an image folder, shared by the Fiji plugin and the headless entry point
+ * nothing here needs a display
+ * @author phm
+ */
+public class BatchAnalysis {
+
+    private final Tools tools;
+    private final String imageDir;
+    private final String outDirResults;
+    // channels found in images, channels chosen for gene1, gene2, DAPI, vessel
+    private final String[] channels;
+    private final String[] chs;
+
+
+    public BatchAnalysis(Tools tools, String imageDir, String outDirResults, String[] channels, String[] chs) {
+        this.tools = tools;
+        this.imageDir = imageDir;
+        this.outDirResults = outDirResults;
+        this.channels = channels;
+        this.chs = chs;
+    }
+
+
+    /**
+     * Read channels names and calibration of an image
+     * calibration is set in tools
+     * @param tools
+     * @param imageFile
+     * @return channels
+     * @throws loci.common.services.DependencyException
+     * @throws loci.common.services.ServiceException
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public static String[] readChannels(Tools tools, String imageFile) throws DependencyException, ServiceException, FormatException, IOException {
+        // create OME-XML metadata store of the latest schema version
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        try (ImageProcessorReader reader = new ImageProcessorReader()) {
+            reader.setMetadataStore(meta);
+            reader.setId(imageFile);
+            String[] channels = tools.findChannels(imageFile, meta, reader);
+            tools.cal = tools.findImageCalib(meta);
+            return(channels);
+        }
+    }
+
+
+    /**
+     * Analyze all images and write results.xls
+     * images already analyzed with the same parameters (see ResultsCheckpoint) are skipped
+     * @param imageFiles
+     * @throws java.io.IOException
+     * @throws java.lang.InterruptedException
+     */
+    public void run(List<String> imageFiles) throws IOException, InterruptedException {
+        new File(outDirResults).mkdirs();
+        ResultsCheckpoint checkpoint = new ResultsCheckpoint(outDirResults, tools.parametersHash(chs));
+        List<String> todo = new ArrayList<>();
+        for (String f : imageFiles)
+            if (!checkpoint.isComplete(f))
+                todo.add(f);
+        System.out.println((imageFiles.size() - todo.size())+" images already done, "+todo.size()+" to analyze");
+        if (tools.shareFolder) {
+            runShared(todo, imageFiles, checkpoint);
+            return;
+        }
+        try {
+            tools.metrics.register();
+            runPipeline(todo, checkpoint, null);
+        } finally {
+            tools.releaseGpuBuffers();
+            CellposeWorker.shutdownAll();
+        }
+        merge(imageFiles, checkpoint);
+        tools.cellposeCacheReport();
+        tools.metrics.writeSummary(outDirResults);
+    }
+
+
+    /**
+     * Analyze the images not claimed by other nodes
+     * results.xls is merged by the node finishing last
+     * @param todo images not done yet
+     * @param imageFiles all images
+     * @param checkpoint
+     * @throws java.io.IOException
+     * @throws java.lang.InterruptedException
+     */
+    private void runShared(List<String> todo, List<String> imageFiles, ResultsCheckpoint checkpoint) throws IOException, InterruptedException {
+        try (ImageLeases leases = new ImageLeases(new File(outDirResults, "leases"), tools.leaseTimeoutMin, checkpoint::isComplete)) {
+            System.out.println("Node "+leases.nodeId+" sharing "+imageDir);
+            tools.metrics.register();
+            runPipeline(todo, checkpoint, leases);
+            tools.cellposeCacheReport();
+            tools.metrics.writeSummary(outDirResults + leases.nodeId + "_");
+            if (leases.allDone(imageFiles))
+                merge(imageFiles, checkpoint);
+            else
+                System.out.println("Images left to other nodes, results.xls not merged yet");
+        } finally {
+            tools.releaseGpuBuffers();
+            CellposeWorker.shutdownAll();
+        }
+    }
+
+
+    /**
+     * Merge images results into results.xls, in image order
+     * @param imageFiles
+     * @throws java.io.IOException
+     */
+    public void merge(List<String> imageFiles) throws IOException {
+        merge(imageFiles, new ResultsCheckpoint(outDirResults, tools.parametersHash(chs)));
+    }
+
+
+    private void merge(List<String> imageFiles, ResultsCheckpoint checkpoint) throws IOException {
+        int missing = checkpoint.merge(imageFiles, NucleiResults.header(tools.nbGenes), NucleiResults.fociHeader());
+        if (missing > 0)
+            System.out.println("Warning : "+missing+" images missing in results.xls");
+        System.out.println("Merged "+outDirResults+"results.xls and foci.xls");
+    }
+
+
+    private String objectsImagePath(String imageFile) {
+        return(outDirResults + FilenameUtils.getBaseName(imageFile)+"_Objects.tif");
+    }
+
+
+    /**
+     * State of one image going through the pipeline stages
+     */
+    private static class ImageJob {
+        final String file;
+        final String rootName;
+        PipelineMetrics.ImageRecord metrics;
+        int memoryPermits = 0;
+        boolean claimed = false;
+        // no roi file, saved without results
+        boolean skipped = false;
+        ChannelReader reader;
+        ImagePlus imgDAPI, imgGene1, imgGene2;
+        Objects3DIntPopulation roisPop, gene1Pop, gene2Pop;
+        RoiIndex roiIndex;
+        NucleiResults nuclei;
+
+        ImageJob(String file) {
+            this.file = file;
+            this.rootName = FilenameUtils.getBaseName(file);
+        }
+
+        // images and reader left open by an error
+        void close() {
+            for (ImagePlus img : new ImagePlus[] {imgDAPI, imgGene1, imgGene2})
+                if (img != null)
+                    img.close();
+            imgDAPI = imgGene1 = imgGene2 = null;
+            try {
+                if (reader != null)
+                    reader.close();
+            } catch (IOException ex) {
+                System.out.println("Can't close "+file+" : "+ex.getMessage());
+            }
+            reader = null;
+        }
+    }
+
+
+    private interface JobStep {
+        void run(ImageJob job) throws Exception;
+    }
+
+
+    /**
+     * Run a stage of an image on this thread, stages are recorded in the image metrics
+     */
+    private ImageJob step(ImageJob job, JobStep body) throws Exception {
+        tools.metrics.attachImage(job.metrics);
+        try {
+            if (!job.skipped)
+                body.run(job);
+        } finally {
+            job.metrics = tools.metrics.detachImage();
+        }
+        return(job);
+    }
+
+
+    /**
+     * Images go through read -> nuclei segmentation -> foci -> write, each stage with its own workers
+     * an image is only read when its estimated memory fits in the budget, the budget is given back once written
+     * @param todo
+     * @param checkpoint
+     * @param leases null if the folder is not shared
+     * @throws java.lang.InterruptedException
+     */
+    private void runPipeline(List<String> todo, ResultsCheckpoint checkpoint, ImageLeases leases) throws InterruptedException {
+        int memoryMB = (int)Math.max(1, Math.min(Integer.MAX_VALUE, tools.maxMemoryGB*1024));
+        Semaphore memory = new Semaphore(memoryMB, true);
+        List<ImageJob> jobs = new ArrayList<>();
+        for (String f : todo)
+            jobs.add(new ImageJob(f));
+        new StagedPipeline<ImageJob>(tools.queueDepth, (stage, job, ex) -> {
+                System.out.println("Image "+job.file+" failed in "+stage+" : "+ex);
+                ex.printStackTrace();
+                job.close();
+                finish(job, memory, leases);
+            })
+            .stage("read", tools.readWorkers, job -> {
+                if (leases != null) {
+                    if (!leases.claim(job.file))
+                        return(null);
+                    job.claimed = true;
+                }
+                int permits = (int)Math.min(memoryMB, Math.max(1, tools.estimateImageMemory(job.file)/(1024*1024)));
+                memory.acquire(permits);
+                // only permits actually held are given back by finish
+                job.memoryPermits = permits;
+                tools.metrics.startImage(job.rootName);
+                job.metrics = tools.metrics.detachImage();
+                return(step(job, this::read));
+            })
+            .stage("segmentation", tools.segmentWorkers, job -> step(job, this::segment))
+            .stage("foci", tools.nbWorkers, job -> step(job, this::foci))
+            .stage("write", tools.writeWorkers, job -> {
+                // a failed write is finished by the error handler
+                write(job, checkpoint);
+                finish(job, memory, leases);
+                return(null);
+            })
+            .run(jobs);
+    }
+
+
+    /**
+     * Open image, decode DAPI, rois objects
+     */
+    private void read(ImageJob job) throws Exception {
+        // Find ROI file
+        String roiFile = imageDir+job.rootName+".zip";
+        if (!new File(roiFile).exists()) {
+            roiFile = imageDir+job.rootName+".roi";
+            if (!new File(roiFile).exists()) {
+                System.out.println("No ROI file found for "+job.rootName+" !");
+                job.skipped = true;
+                return;
+            }
+        }
+        Roi[] rois = tools.loadRois(roiFile);
+
+        // Open file once, each channel is decoded only when needed
+        job.reader = new ChannelReader(job.file, tools.cal);
+        System.out.println("Opening DAPI channel = "+ chs[2]);
+        try (PipelineMetrics.Stage stage = tools.metrics.stage("decode DAPI", 0)) {
+            job.imgDAPI = job.reader.openChannel(ArrayUtils.indexOf(channels, chs[2]));
+            stage.setVoxels(Tools.voxels(job.imgDAPI));
+        }
+
+        // get Object3D from rois
+        job.roisPop = tools.getObjectsFromRoi(job.imgDAPI, rois);
+        job.roiIndex = new RoiIndex(rois);
+    }
+
+
+    /**
+     * Find nucleus population
+     */
+    private void segment(ImageJob job) throws Exception {
+        job.nuclei = tools.cellposeDetection(job.imgDAPI, job.roiIndex);
+        tools.closeImages(job.imgDAPI);
+        job.imgDAPI = null;
+    }
+
+
+    /**
+     * Genes foci in nuclei, objects image queued
+     */
+    private void foci(ImageJob job) throws Exception {
+        ChannelReader reader = job.reader;
+        NucleiResults nuclei = job.nuclei;
+        // objects image dimensions and bit depth
+        int[] dims;
+        if (tools.fociTileSize > 0) {
+            // genes detected tile by tile, channels are never loaded as a whole
+            job.gene1Pop = tools.findGenesPopTiled(reader, ArrayUtils.indexOf(channels, chs[0]), nuclei, 1);
+            System.out.println(job.gene1Pop.getNbObjects()+" genes1 found in nucleus");
+            job.gene2Pop = tools.findGenesPopTiled(reader, ArrayUtils.indexOf(channels, chs[1]), nuclei, 2);
+            System.out.println(job.gene2Pop.getNbObjects()+" genes2 found in nucleus");
+            dims = new int[] {reader.getWidth(), reader.getHeight(), reader.getDepth(), reader.getBitDepth()};
+        }
+        else {
+            // Open gene1
+            System.out.println("Opening gene1 channel = "+ chs[0]);
+            try (PipelineMetrics.Stage stage = tools.metrics.stage("decode gene1", 0)) {
+                job.imgGene1 = reader.openChannel(ArrayUtils.indexOf(channels, chs[0]));
+                stage.setVoxels(Tools.voxels(job.imgGene1));
+            }
+            job.gene1Pop = tools.findGenesPop(job.imgGene1, nuclei, 1);
+            System.out.println(job.gene1Pop.getNbObjects()+" genes1 found in nucleus");
+            tools.closeImages(job.imgGene1);
+            job.imgGene1 = null;
+
+            // Open gene2
+            System.out.println("Opening gene2 channel = "+ chs[1]);
+            try (PipelineMetrics.Stage stage = tools.metrics.stage("decode gene2", 0)) {
+                job.imgGene2 = reader.openChannel(ArrayUtils.indexOf(channels, chs[1]));
+                stage.setVoxels(Tools.voxels(job.imgGene2));
+            }
+            job.gene2Pop = tools.findGenesPop(job.imgGene2, nuclei, 2);
+            System.out.println(job.gene2Pop.getNbObjects()+" genes2 found in nucleus");
+            dims = new int[] {job.imgGene2.getWidth(), job.imgGene2.getHeight(), job.imgGene2.getNSlices(), job.imgGene2.getBitDepth()};
+            tools.closeImages(job.imgGene2);
+            job.imgGene2 = null;
+        }
+        reader.close();
+        job.reader = null;
+
+        // Write parameters
+        IJ.showStatus("Writing parameters ...");
+        nuclei.setImage(job.rootName, tools.findPopVolume(job.roisPop));
+
+        // save image objects
+        IJ.showStatus("Save images objects ...");
+        tools.saveGenesImage(nuclei.nuclei, job.gene1Pop, job.gene2Pop, job.roisPop, dims[0], dims[1], dims[2], dims[3], objectsImagePath(job.file));
+    }
+
+
+    /**
+     * Save image results once its objects image is written
+     */
+    private void write(ImageJob job, ResultsCheckpoint checkpoint) throws Exception {
+        tools.metrics.attachImage(job.metrics);
+        try {
+            if (!job.skipped) {
+                try (PipelineMetrics.Stage stage = tools.metrics.stage("write objects image", 0)) {
+                    tools.awaitObjectsImage(objectsImagePath(job.file));
+                }
+            }
+            checkpoint.save(job.file, job.skipped ? null : job.nuclei);
+        } finally {
+            job.metrics = tools.metrics.detachImage();
+        }
+    }
+
+
+    /**
+     * Image done or failed, metrics written, memory and lease given back
+     */
+    private void finish(ImageJob job, Semaphore memory, ImageLeases leases) {
+        tools.metrics.attachImage(job.metrics);
+        try {
+            tools.metrics.endImage(outDirResults);
+        } catch (IOException ex) {
+            System.out.println("Can't write metrics of "+job.rootName+" : "+ex.getMessage());
+        }
+        job.metrics = null;
+        memory.release(job.memoryPermits);
+        job.memoryPermits = 0;
+        try {
+            if (job.claimed)
+                leases.release(job.file);
+        } catch (IOException ex) {
+            System.out.println("Can't release lease of "+job.rootName+" : "+ex.getMessage());
+        }
+        job.claimed = false;
+    }
+}
@@ -0,0 +1,163 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+
+/**
+ * Binary 3D mask, one bit per voxel
+ * each slice is a long[], each row starts on a new word so rows can be scanned word by word
+ * bit x%64 of word y*wordsPerRow + x/64 is voxel (x, y)
+ * @author phm
+ */
+public class BitMask {
+
+    public interface RunConsumer {
+        void run(int z, int y, int x0, int x1);
+    }
+
+    public final int width, height, depth;
+    final int wordsPerRow;
+    final long[][] bits;
+
+
+    public BitMask(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        wordsPerRow = (width + 63) >>> 6;
+        bits = new long[depth][wordsPerRow * height];
+    }
+
+
+    /**
+     * Mask of the non zero voxels of a stack
+     * @param img
+     * @return mask
+     */
+    public static BitMask fromImage(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        BitMask mask = new BitMask(img.getWidth(), img.getHeight(), stack.getSize());
+        CpuFilters.parallelFor(mask.depth, z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            Object pixels = ip.getPixels();
+            long[] slice = mask.bits[z];
+            for (int y = 0; y < mask.height; y++) {
+                int offset = y*mask.width, word = y*mask.wordsPerRow;
+                if (pixels instanceof byte[]) {
+                    byte[] p = (byte[])pixels;
+                    for (int x = 0; x < mask.width; x++)
+                        if (p[offset + x] != 0)
+                            slice[word + (x >>> 6)] |= 1L << x;
+                }
+                else {
+                    for (int x = 0; x < mask.width; x++)
+                        if (ip.getf(offset + x) != 0)
+                            slice[word + (x >>> 6)] |= 1L << x;
+                }
+            }
+        });
+        return(mask);
+    }
+
+
+    /**
+     * Voxels >= level of float slices
+     * @param data [z][y*width+x]
+     * @param width
+     * @param height
+     * @param level
+     * @return mask
+     */
+    public static BitMask threshold(float[][] data, int width, int height, float level) {
+        BitMask mask = new BitMask(width, height, data.length);
+        CpuFilters.parallelFor(data.length*height, r -> {
+            int z = r / height, y = r % height;
+            float[] in = data[z];
+            long[] slice = mask.bits[z];
+            int offset = y*width, word = y*mask.wordsPerRow;
+            for (int x = 0; x < width; x++)
+                if (in[offset + x] >= level)
+                    slice[word + (x >>> 6)] |= 1L << x;
+        });
+        return(mask);
+    }
+
+
+    public boolean get(int x, int y, int z) {
+        return((bits[z][y*wordsPerRow + (x >>> 6)] & (1L << x)) != 0);
+    }
+
+
+    public void set(int x, int y, int z) {
+        bits[z][y*wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+
+    /**
+     * Number of voxels set
+     * @return
+     */
+    public long count() {
+        long n = 0;
+        for (long[] slice : bits)
+            for (long word : slice)
+                n += Long.bitCount(word);
+        return(n);
+    }
+
+
+    /**
+     * Runs of set voxels of a row, in x order
+     * @param z
+     * @param y
+     * @param consumer
+     */
+    public void forEachRun(int z, int y, RunConsumer consumer) {
+        long[] slice = bits[z];
+        int row = y*wordsPerRow;
+        int start = -1;
+        for (int w = 0; w < wordsPerRow; w++) {
+            long word = slice[row + w];
+            int base = w << 6;
+            // outside a run look for a set bit, inside for a cleared one
+            long search = (start < 0) ? word : ~word;
+            while (search != 0) {
+                int bit = Long.numberOfTrailingZeros(search);
+                if (start < 0) {
+                    start = base + bit;
+                    search = ~word & (-1L << bit);
+                }
+                else {
+                    consumer.run(z, y, start, base + bit - 1);
+                    start = -1;
+                    search = word & (-1L << bit);
+                }
+            }
+        }
+        if (start >= 0)
+            consumer.run(z, y, start, width - 1);
+    }
+
+
+    /**
+     * 8-bit image 0/255
+     * @param title
+     * @return image
+     */
+    public ImagePlus toImage(String title) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            byte[] pixels = new byte[width*height];
+            long[] slice = bits[z];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    if ((slice[y*wordsPerRow + (x >>> 6)] & (1L << x)) != 0)
+                        pixels[y*width + x] = (byte)255;
+            stack.addSlice(new ByteProcessor(width, height, pixels));
+        }
+        return(new ImagePlus(title, stack));
+    }
+}
@@ -0,0 +1,108 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.Closeable;
+import java.io.IOException;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Open an image file once and decode only the channels asked for
+ * each plane of a channel is decoded when the channel is opened, never twice
+ * @author phm
+ */
+public class ChannelReader implements Closeable {
+
+    private final ImageProcessorReader reader;
+    private final String rootName;
+    private final Calibration cal;
+
+
+    public ChannelReader(String imageFile, Calibration cal) throws FormatException, IOException {
+        reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+        reader.setId(imageFile);
+        reader.setSeries(0);
+        rootName = FilenameUtils.getBaseName(imageFile);
+        this.cal = cal;
+    }
+
+
+    /**
+     * Decode all z planes of one channel (first time point)
+     * @param channel channel index
+     * @return channel image
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public synchronized ImagePlus openChannel(int channel) throws FormatException, IOException {
+        if (channel < 0 || channel >= reader.getSizeC())
+            throw new IllegalArgumentException("Channel "+channel+" not found in "+rootName);
+        ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+        for (int z = 0; z < reader.getSizeZ(); z++) {
+            int index = reader.getIndex(z, channel, 0);
+            stack.addSlice(reader.openProcessors(index)[0]);
+        }
+        ImagePlus img = new ImagePlus(rootName+" - C="+channel, stack);
+        img.setCalibration(cal.copy());
+        return(img);
+    }
+
+
+    /**
+     * Decode a region of all z planes of one channel (first time point)
+     * reading is serialised, regions can be asked from several threads
+     * @param channel channel index
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @return region image
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public synchronized ImagePlus openRegion(int channel, int x, int y, int width, int height) throws FormatException, IOException {
+        if (channel < 0 || channel >= reader.getSizeC())
+            throw new IllegalArgumentException("Channel "+channel+" not found in "+rootName);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < reader.getSizeZ(); z++) {
+            int index = reader.getIndex(z, channel, 0);
+            stack.addSlice(reader.openProcessors(index, x, y, width, height)[0]);
+        }
+        ImagePlus img = new ImagePlus(rootName+" - C="+channel+" ["+x+","+y+"]", stack);
+        img.setCalibration(cal.copy());
+        return(img);
+    }
+
+
+    public int getWidth() {
+        return(reader.getSizeX());
+    }
+
+
+    public int getHeight() {
+        return(reader.getSizeY());
+    }
+
+
+    public int getDepth() {
+        return(reader.getSizeZ());
+    }
+
+
+    public int getBitDepth() {
+        return(FormatTools.getBytesPerPixel(reader.getPixelType())*8);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,169 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Device buffers kept from one image to the next
+ * buffers are recycled by dimensions and type, several shapes are kept at once
+ * (downsampled DAPI, full size genes, edge tiles ...)
+ * idle buffers are capped in bytes, the least recently used shapes are freed first
+ * not thread safe, callers synchronize on the CLIJ2 instance
+ * @author phm
+ */
+public class ClBufferPool {
+
+    private final CLIJ2 clij2;
+    private final long maxIdleBytes;
+    // idle buffers by shape, in access order
+    private final LinkedHashMap<String, ArrayDeque<ClearCLBuffer>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private long idleBytes = 0;
+
+
+    /**
+     * @param clij2
+     * @param maxIdleBytes bytes of idle buffers kept on the device
+     */
+    public ClBufferPool(CLIJ2 clij2, long maxIdleBytes) {
+        this.clij2 = clij2;
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+
+    private static String key(long[] dims, NativeTypeEnum type) {
+        return(type + Arrays.toString(dims));
+    }
+
+
+    private static long bytes(long[] dims, NativeTypeEnum type) {
+        long size;
+        switch (type) {
+            case Byte :
+            case UnsignedByte :
+                size = 1;
+                break;
+            case Short :
+            case UnsignedShort :
+            case HalfFloat :
+                size = 2;
+                break;
+            case Long :
+            case UnsignedLong :
+            case Double :
+                size = 8;
+                break;
+            default :
+                size = 4;
+        }
+        for (long d : dims)
+            size *= d;
+        return(size);
+    }
+
+
+    /**
+     * Get a buffer from the pool, created if none is free
+     * @param dims
+     * @param type
+     * @return buffer
+     */
+    public ClearCLBuffer acquire(long[] dims, NativeTypeEnum type) {
+        ArrayDeque<ClearCLBuffer> buffers = idle.get(key(dims, type));
+        if (buffers != null && !buffers.isEmpty()) {
+            idleBytes -= bytes(dims, type);
+            return(buffers.pop());
+        }
+        return(clij2.create(dims, type));
+    }
+
+
+    /**
+     * Give buffer back to the pool, least recently used idle buffers are freed over the cap
+     * @param buffer
+     */
+    public void release(ClearCLBuffer buffer) {
+        long[] dims = buffer.getDimensions();
+        NativeTypeEnum type = buffer.getNativeType();
+        idle.computeIfAbsent(key(dims, type), k -> new ArrayDeque<>()).push(buffer);
+        idleBytes += bytes(dims, type);
+        Iterator<Map.Entry<String, ArrayDeque<ClearCLBuffer>>> it = idle.entrySet().iterator();
+        while (idleBytes > maxIdleBytes && it.hasNext()) {
+            ArrayDeque<ClearCLBuffer> lru = it.next().getValue();
+            while (idleBytes > maxIdleBytes && !lru.isEmpty()) {
+                ClearCLBuffer old = lru.removeLast();
+                idleBytes -= bytes(old.getDimensions(), old.getNativeType());
+                clij2.release(old);
+            }
+            if (lru.isEmpty())
+                it.remove();
+        }
+    }
+
+
+    /**
+     * Upload image into a pooled buffer of the same pixel type
+     * slices are written one by one into the buffer, no host copy of the whole stack
+     * @param img 8, 16 or 32-bit stack
+     * @return buffer
+     */
+    public ClearCLBuffer push(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        long width = img.getWidth(), height = img.getHeight();
+        int depth = stack.getSize();
+        long[] dims = {width, height, depth};
+        long[] region = {width, height, 1};
+        NativeTypeEnum type;
+        switch (img.getBitDepth()) {
+            case 8 :
+                type = NativeTypeEnum.UnsignedByte;
+                break;
+            case 16 :
+                type = NativeTypeEnum.UnsignedShort;
+                break;
+            default :
+                type = NativeTypeEnum.Float;
+        }
+        ClearCLBuffer buffer = acquire(dims, type);
+        try {
+            for (int z = 0; z < depth; z++) {
+                Buffer slice;
+                if (type == NativeTypeEnum.UnsignedByte)
+                    slice = ByteBuffer.wrap((byte[])stack.getPixels(z+1));
+                else if (type == NativeTypeEnum.UnsignedShort)
+                    slice = ShortBuffer.wrap((short[])stack.getPixels(z+1));
+                else
+                    slice = FloatBuffer.wrap((float[])stack.getProcessor(z+1).convertToFloat().getPixels());
+                buffer.readFrom(slice, new long[] {0, 0, z}, region, true);
+            }
+        } catch (RuntimeException e) {
+            clij2.release(buffer);
+            throw e;
+        }
+        return(buffer);
+    }
+
+
+    /**
+     * Free all idle buffers
+     */
+    public void clear() {
+        for (ArrayDeque<ClearCLBuffer> buffers : idle.values())
+            for (ClearCLBuffer buffer : buffers)
+                clij2.release(buffer);
+        idle.clear();
+        idleBytes = 0;
+    }
+}
@@ -0,0 +1,157 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.measure.Calibration;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+
+/**
+ * Grey 8 or 16 bits TIFF written one plane at a time, each plane is one Deflate (zip) strip
+ * the ImageJ description makes it a composite hyperstack with the calibration of the image,
+ * channels get the ImageJ default colors (red, green, blue, grey ...)
+ * planes must be written in ImageJ order, channel first then slice
+ * @author phm
+ */
+public class CompressedTiffWriter implements Closeable {
+
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    private final FileChannel out;
+    private final int width, height, bytesPerPixel, nImages;
+    private final byte[] description;
+    private final long xResolution, yResolution;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed;
+    private long pos;
+    // where the next IFD offset of the last page is written
+    private long nextIFDPointer = 4;
+    private int written = 0;
+
+
+    /**
+     * @param file
+     * @param width
+     * @param height
+     * @param bitDepth 8 or 16
+     * @param channels
+     * @param slices
+     * @param cal
+     * @throws java.io.IOException
+     */
+    public CompressedTiffWriter(File file, int width, int height, int bitDepth, int channels, int slices, Calibration cal) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = (bitDepth == 8) ? 1 : 2;
+        this.nImages = channels * slices;
+        String desc = "ImageJ=1.53t\nimages="+nImages+"\nchannels="+channels+"\nslices="+slices+"\nhyperstack=true\nmode=composite\n"
+                +"unit="+cal.getUnit()+"\nspacing="+cal.pixelDepth+"\nloop=false\n\0";
+        description = desc.getBytes(StandardCharsets.US_ASCII);
+        xResolution = Math.round(1e6 / cal.pixelWidth);
+        yResolution = Math.round(1e6 / cal.pixelHeight);
+        compressed = new byte[width * height * bytesPerPixel / 4 + 1024];
+        out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(0);
+        header.flip();
+        out.write(header, 0);
+        pos = 8;
+    }
+
+
+    /**
+     * Append a plane
+     * @param pixels width*height pixels, 16 bits pixels in little endian
+     * @throws java.io.IOException
+     */
+    public void writePlane(byte[] pixels) throws IOException {
+        if (written == nImages)
+            throw new IOException("All "+nImages+" planes already written");
+        deflater.reset();
+        deflater.setInput(pixels, 0, width * height * bytesPerPixel);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressed.length)
+                compressed = Arrays.copyOf(compressed, 2*compressed.length);
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        long stripOffset = pos;
+        write(ByteBuffer.wrap(compressed, 0, size));
+
+        // IFD, word aligned, extra values after the entries
+        boolean first = (written == 0);
+        int nEntries = first ? 15 : 14;
+        if (pos % 2 == 1)
+            write(ByteBuffer.wrap(new byte[1]));
+        long ifd = pos;
+        long extra = ifd + 2 + 12L*nEntries + 4;
+        ByteBuffer buf = ByteBuffer.allocate((int)(extra - ifd) + 16 + (first ? description.length : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort((short)nEntries);
+        entry(buf, 254, 4, 1, 0);
+        entry(buf, 256, 4, 1, width);
+        entry(buf, 257, 4, 1, height);
+        entry(buf, 258, 3, 1, 8*bytesPerPixel);
+        entry(buf, 259, 3, 1, COMPRESSION_DEFLATE);
+        entry(buf, 262, 3, 1, 1);
+        if (first)
+            entry(buf, 270, 2, description.length, extra + 16);
+        entry(buf, 273, 4, 1, stripOffset);
+        entry(buf, 277, 3, 1, 1);
+        entry(buf, 278, 4, 1, height);
+        entry(buf, 279, 4, 1, size);
+        entry(buf, 282, 5, 1, extra);
+        entry(buf, 283, 5, 1, extra + 8);
+        entry(buf, 284, 3, 1, 1);
+        entry(buf, 296, 3, 1, 1);
+        long next = buf.position();
+        buf.putInt(0);
+        buf.putInt((int)xResolution).putInt(1000000);
+        buf.putInt((int)yResolution).putInt(1000000);
+        if (first)
+            buf.put(description);
+        buf.flip();
+        write(buf);
+
+        // link previous page to this one
+        ByteBuffer link = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int)ifd);
+        link.flip();
+        out.write(link, nextIFDPointer);
+        nextIFDPointer = ifd + next;
+        written++;
+    }
+
+
+    private static void entry(ByteBuffer buf, int tag, int type, int count, long value) {
+        buf.putShort((short)tag).putShort((short)type).putInt(count);
+        if (type == 3 && count == 1)
+            buf.putShort((short)value).putShort((short)0);
+        else
+            buf.putInt((int)value);
+    }
+
+
+    private void write(ByteBuffer buf) throws IOException {
+        if (pos + buf.remaining() > MAX_OFFSET)
+            throw new IOException("TIFF larger than 4 GB");
+        while (buf.hasRemaining())
+            pos += out.write(buf, pos);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        out.close();
+        if (written != nImages)
+            throw new IOException(written+" planes written out of "+nImages);
+    }
+}
@@ -0,0 +1,484 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+
+/**
+ * Pure Java versions of the CLIJ2 filters used by Tools
+ * work is split across slices and rows on the fork-join common pool
+ * @author phm
+ */
+public class CpuFilters {
+
+    static final int HISTOGRAM_BINS = 256;
+
+
+    /**
+     * Run body for 0..n-1 on the fork-join pool
+     */
+    static void parallelFor(int n, IntConsumer body) {
+        IntStream.range(0, n).parallel().forEach(body);
+    }
+
+
+    /**
+     * Stack as float slices, slices already in float are not copied
+     * @param img
+     * @return pixels [z][y*width+x]
+     */
+    static float[][] toFloat(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        float[][] data = new float[stack.getSize()][];
+        parallelFor(data.length, z -> data[z] = (float[])stack.getProcessor(z+1).convertToFloat().getPixels());
+        return(data);
+    }
+
+
+    static ImagePlus toImagePlus(String title, float[][] data, int width, int height, ImagePlus ref) {
+        ImageStack stack = new ImageStack(width, height);
+        for (float[] slice : data)
+            stack.addSlice(new FloatProcessor(width, height, slice));
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setCalibration(ref.getCalibration());
+        return(img);
+    }
+
+
+    /**
+     * Normalised gaussian kernel, radius 3 sigma
+     */
+    static float[] gaussKernel(double sigma) {
+        int radius = Math.max(1, (int)Math.ceil(3*sigma));
+        float[] kernel = new float[2*radius+1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i+radius] = (float)Math.exp(-(i*i)/(2*sigma*sigma));
+            sum += kernel[i+radius];
+        }
+        for (int i = 0; i < kernel.length; i++)
+            kernel[i] /= sum;
+        return(kernel);
+    }
+
+
+    /**
+     * Separable 3D gaussian, same sigma in pixels on the 3 axes, edges are clamped
+     * @param data
+     * @param width
+     * @param height
+     * @param sigma
+     * @return blurred copy
+     */
+    static float[][] gaussian3D(float[][] data, int width, int height, double sigma) {
+        float[] kernel = gaussKernel(sigma);
+        int radius = kernel.length/2;
+        int depth = data.length;
+        float[][] tmp = new float[depth][width*height];
+        float[][] out = new float[depth][width*height];
+
+        // X
+        parallelFor(depth*height, r -> {
+            int z = r / height, row = (r % height) * width;
+            float[] in = data[z], o = tmp[z];
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int xx = Math.min(width-1, Math.max(0, x+k));
+                    sum += kernel[k+radius] * in[row+xx];
+                }
+                o[row+x] = sum;
+            }
+        });
+        // Y
+        parallelFor(depth*height, r -> {
+            int z = r / height, y = r % height;
+            float[] in = tmp[z], o = out[z];
+            int row = y * width;
+            Arrays.fill(o, row, row+width, 0);
+            for (int k = -radius; k <= radius; k++) {
+                int yy = Math.min(height-1, Math.max(0, y+k)) * width;
+                float w = kernel[k+radius];
+                for (int x = 0; x < width; x++)
+                    o[row+x] += w * in[yy+x];
+            }
+        });
+        // Z
+        parallelFor(depth*height, r -> {
+            int z = r / height, row = (r % height) * width;
+            float[] o = tmp[z];
+            Arrays.fill(o, row, row+width, 0);
+            for (int k = -radius; k <= radius; k++) {
+                float[] in = out[Math.min(depth-1, Math.max(0, z+k))];
+                float w = kernel[k+radius];
+                for (int x = 0; x < width; x++)
+                    o[row+x] += w * in[row+x];
+            }
+        });
+        return(tmp);
+    }
+
+
+    /**
+     * Difference of Gaussians
+     * @param img
+     * @param sigma1
+     * @param sigma2
+     * @return 32-bit image
+     */
+    public static ImagePlus DOG(ImagePlus img, double sigma1, double sigma2) {
+        int width = img.getWidth(), height = img.getHeight();
+        float[][] data = toFloat(img);
+        float[][] g1 = gaussian3D(data, width, height, sigma1);
+        float[][] g2 = gaussian3D(data, width, height, sigma2);
+        parallelFor(g1.length, z -> {
+            float[] a = g1[z], b = g2[z];
+            for (int i = 0; i < a.length; i++)
+                a[i] -= b[i];
+        });
+        return(toImagePlus(img.getTitle()+"-DOG", g1, width, height, img));
+    }
+
+
+    /**
+     * Slice as float, 8 and 16 bits pixels are converted without an ImageProcessor copy
+     */
+    static float[] sliceToFloat(ImageStack stack, int z) {
+        Object pixels = stack.getPixels(z+1);
+        if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            float[] f = new float[p.length];
+            for (int i = 0; i < p.length; i++)
+                f[i] = p[i] & 0xffff;
+            return(f);
+        }
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            float[] f = new float[p.length];
+            for (int i = 0; i < p.length; i++)
+                f[i] = p[i] & 0xff;
+            return(f);
+        }
+        return((float[])stack.getProcessor(z+1).convertToFloat().getPixels());
+    }
+
+
+    /**
+     * Gaussian along X then Y of one slice, edges are clamped
+     */
+    static float[] gaussianXY(float[] in, int width, int height, float[] kernel) {
+        int radius = kernel.length/2;
+        float[] tmp = new float[width*height];
+        float[] out = new float[width*height];
+        parallelFor(height, y -> {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int xx = Math.min(width-1, Math.max(0, x+k));
+                    sum += kernel[k+radius] * in[row+xx];
+                }
+                tmp[row+x] = sum;
+            }
+        });
+        parallelFor(height, y -> {
+            int row = y * width;
+            for (int k = -radius; k <= radius; k++) {
+                int yy = Math.min(height-1, Math.max(0, y+k)) * width;
+                float w = kernel[k+radius];
+                for (int x = 0; x < width; x++)
+                    out[row+x] += w * tmp[yy+x];
+            }
+        });
+        return(out);
+    }
+
+
+    /**
+     * Difference of Gaussians in half floats, computed slice by slice
+     * - the stack is read in its own type, never converted as a whole
+     * - XY blurred slices of both gaussians are kept in ring buffers of 2*radius+1 slices
+     *   for the Z pass, the DOG of each slice is stored as half floats
+     * same result as DOG() within the half float precision
+     * @param img
+     * @param sigma1
+     * @param sigma2
+     * @return half floats [z][y*width+x]
+     */
+    public static short[][] DOGHalf(ImagePlus img, double sigma1, double sigma2) {
+        int width = img.getWidth(), height = img.getHeight();
+        ImageStack stack = img.getStack();
+        int depth = stack.getSize();
+        float[] k1 = gaussKernel(sigma1), k2 = gaussKernel(sigma2);
+        int r1 = k1.length/2, r2 = k2.length/2;
+        int ahead = Math.max(r1, r2);
+        // slices z-radius .. z+ahead are needed at once
+        int ringSize = 2*ahead + 1;
+        float[][] ring1 = new float[ringSize][], ring2 = new float[ringSize][];
+        short[][] dog = new short[depth][width*height];
+        int next = 0;
+        for (int z = 0; z < depth; z++) {
+            for (; next <= Math.min(depth-1, z+ahead); next++) {
+                float[] in = sliceToFloat(stack, next);
+                ring1[next % ringSize] = gaussianXY(in, width, height, k1);
+                ring2[next % ringSize] = gaussianXY(in, width, height, k2);
+            }
+            int zz = z;
+            short[] out = dog[z];
+            parallelFor(height, y -> {
+                int row = y * width;
+                float[] acc = new float[width];
+                for (int k = -r1; k <= r1; k++) {
+                    float[] in = ring1[Math.min(depth-1, Math.max(0, zz+k)) % ringSize];
+                    float w = k1[k+r1];
+                    for (int x = 0; x < width; x++)
+                        acc[x] += w * in[row+x];
+                }
+                for (int k = -r2; k <= r2; k++) {
+                    float[] in = ring2[Math.min(depth-1, Math.max(0, zz+k)) % ringSize];
+                    float w = k2[k+r2];
+                    for (int x = 0; x < width; x++)
+                        acc[x] -= w * in[row+x];
+                }
+                for (int x = 0; x < width; x++)
+                    out[row+x] = HalfFloat.fromFloat(acc[x]);
+            });
+        }
+        return(dog);
+    }
+
+
+    /**
+     * Automatic threshold of half floats, as thresholdLevel() on the decoded values
+     * voxels are counted once per half value, the 256 bins histogram is built from these counts
+     * @param data half floats [z][y*width+x]
+     * @param width
+     * @param height
+     * @param method AutoThresholder method
+     * @return mask of voxels >= level
+     */
+    public static BitMask thresholdMaskHalf(short[][] data, int width, int height, String method) {
+        long[] counts = IntStream.range(0, data.length).parallel().mapToObj(z -> {
+            long[] c = new long[65536];
+            for (short v : data[z])
+                c[v & 0xffff]++;
+            return c;
+        }).reduce(new long[65536], (a, b) -> {
+            long[] c = new long[65536];
+            for (int i = 0; i < c.length; i++)
+                c[i] = a[i] + b[i];
+            return c;
+        });
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int h = 0; h < 65536; h++) {
+            if (counts[h] == 0)
+                continue;
+            float v = HalfFloat.toFloat((short)h);
+            if (v < min) min = v;
+            if (v > max) max = v;
+        }
+        BitMask mask = new BitMask(width, height, data.length);
+        float binWidth = (max - min) / HISTOGRAM_BINS;
+        if (!(binWidth > 0))
+            return(mask);
+        int[] histogram = new int[HISTOGRAM_BINS];
+        for (int h = 0; h < 65536; h++)
+            if (counts[h] != 0)
+                histogram[Math.min(HISTOGRAM_BINS-1, (int)((HalfFloat.toFloat((short)h) - min) / binWidth))] += counts[h];
+        float level = levelFromHistogram(histogram, min, binWidth, method);
+        boolean[] foreground = new boolean[65536];
+        for (int h = 0; h < 65536; h++)
+            foreground[h] = HalfFloat.toFloat((short)h) >= level;
+        parallelFor(data.length*height, r -> {
+            int z = r / height, y = r % height;
+            short[] in = data[z];
+            long[] slice = mask.bits[z];
+            int offset = y*width, word = y*mask.wordsPerRow;
+            for (int x = 0; x < width; x++)
+                if (foreground[in[offset + x] & 0xffff])
+                    slice[word + (x >>> 6)] |= 1L << x;
+        });
+        return(mask);
+    }
+
+
+    /**
+     * DOG in half floats and threshold, a 16 bits stack needs 2 bytes per voxel on top of its pixels
+     * @param img
+     * @param sigma1
+     * @param sigma2
+     * @param method AutoThresholder method
+     * @return mask
+     */
+    public static BitMask dogThresholdMaskHalf(ImagePlus img, double sigma1, double sigma2, String method) {
+        return(thresholdMaskHalf(DOGHalf(img, sigma1, sigma2), img.getWidth(), img.getHeight(), method));
+    }
+
+
+    /**
+     * Median in a 3D box, edges are clamped
+     * @param img
+     * @param radius box radius in pixels
+     * @return image with the same bit depth
+     */
+    public static ImagePlus median3DBox(ImagePlus img, double radius) {
+        int width = img.getWidth(), height = img.getHeight();
+        int r = (int)Math.round(radius);
+        float[][] data = toFloat(img);
+        int depth = data.length;
+        ImageStack stack = img.getStack();
+        ImageProcessor[] outIps = new ImageProcessor[depth];
+        for (int z = 0; z < depth; z++)
+            outIps[z] = stack.getProcessor(z+1).createProcessor(width, height);
+        int boxSize = (2*r+1)*(2*r+1)*(2*r+1);
+        ThreadLocal<float[]> buffers = ThreadLocal.withInitial(() -> new float[boxSize]);
+
+        parallelFor(depth*height, row -> {
+            int z = row / height, y = row % height;
+            float[] box = buffers.get();
+            ImageProcessor o = outIps[z];
+            for (int x = 0; x < width; x++) {
+                int n = 0;
+                for (int dz = -r; dz <= r; dz++) {
+                    float[] in = data[Math.min(depth-1, Math.max(0, z+dz))];
+                    for (int dy = -r; dy <= r; dy++) {
+                        int yy = Math.min(height-1, Math.max(0, y+dy)) * width;
+                        for (int dx = -r; dx <= r; dx++)
+                            box[n++] = in[yy + Math.min(width-1, Math.max(0, x+dx))];
+                    }
+                }
+                o.setf(y*width+x, select(box, n, n/2));
+            }
+        });
+        ImageStack outStack = new ImageStack(width, height);
+        for (ImageProcessor ip : outIps)
+            outStack.addSlice(ip);
+        ImagePlus imgMed = new ImagePlus(img.getTitle()+"-median", outStack);
+        imgMed.setCalibration(img.getCalibration());
+        return(imgMed);
+    }
+
+
+    /**
+     * k-th smallest of the n first values (quickselect, values are reordered)
+     */
+    static float select(float[] a, int n, int k) {
+        int left = 0, right = n - 1;
+        while (left < right) {
+            float pivot = a[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    float t = a[i]; a[i] = a[j]; a[j] = t;
+                    i++; j--;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                break;
+        }
+        return(a[k]);
+    }
+
+
+    /**
+     * Threshold level on the 256 bins histogram of the whole stack
+     * as CLIJ2 automaticThreshold, bins span the stack min to max
+     * @param data
+     * @param method AutoThresholder method
+     * @return voxels >= level are foreground
+     */
+    static float thresholdLevel(float[][] data, String method) {
+        float[] minMax = IntStream.range(0, data.length).parallel().mapToObj(z -> {
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (float v : data[z]) {
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            return new float[]{min, max};
+        }).reduce((a, b) -> new float[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])}).orElse(new float[]{0, 0});
+        float min = minMax[0];
+        float binWidth = (minMax[1] - min) / HISTOGRAM_BINS;
+        if (binWidth <= 0)
+            return(Float.MAX_VALUE);
+
+        int[] histogram = IntStream.range(0, data.length).parallel().mapToObj(z -> {
+            int[] h = new int[HISTOGRAM_BINS];
+            for (float v : data[z])
+                h[Math.min(HISTOGRAM_BINS-1, (int)((v - min) / binWidth))]++;
+            return h;
+        }).reduce(new int[HISTOGRAM_BINS], (a, b) -> {
+            int[] h = new int[HISTOGRAM_BINS];
+            for (int i = 0; i < HISTOGRAM_BINS; i++)
+                h[i] = a[i] + b[i];
+            return h;
+        });
+        return(levelFromHistogram(histogram, min, binWidth, method));
+    }
+
+
+    /**
+     * Threshold level of a 256 bins histogram starting at min
+     * @param histogram
+     * @param min value of the first bin
+     * @param binWidth
+     * @param method AutoThresholder method
+     * @return voxels >= level are foreground
+     */
+    static float levelFromHistogram(int[] histogram, float min, float binWidth, String method) {
+        int level = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+        return(min + (level + 1) * binWidth);
+    }
+
+
+    /**
+     * Automatic threshold on the stack histogram, one bit per voxel
+     * @param img
+     * @param method AutoThresholder method (MaxEntropy, Otsu ...)
+     * @return mask
+     */
+    public static BitMask thresholdMask(ImagePlus img, String method) {
+        float[][] data = toFloat(img);
+        return(BitMask.threshold(data, img.getWidth(), img.getHeight(), thresholdLevel(data, method)));
+    }
+
+
+    /**
+     * Automatic threshold on the stack histogram
+     * @param img
+     * @param method AutoThresholder method (MaxEntropy, Otsu ...)
+     * @return 8-bit binary image (0/255)
+     */
+    public static ImagePlus threshold(ImagePlus img, String method) {
+        int width = img.getWidth(), height = img.getHeight();
+        float[][] data = toFloat(img);
+        float level = thresholdLevel(data, method);
+        byte[][] bin = new byte[data.length][width*height];
+        parallelFor(data.length*height, r -> {
+            int z = r / height, row = (r % height) * width;
+            float[] in = data[z];
+            byte[] o = bin[z];
+            for (int x = row; x < row+width; x++)
+                if (in[x] >= level)
+                    o[x] = (byte)255;
+        });
+        ImageStack stack = new ImageStack(width, height);
+        for (byte[] slice : bin)
+            stack.addSlice(new ByteProcessor(width, height, slice));
+        ImagePlus imgBin = new ImagePlus(img.getTitle()+"-bin", stack);
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+}
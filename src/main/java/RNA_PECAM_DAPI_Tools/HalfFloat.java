@@ -0,0 +1,77 @@
+package RNA_PECAM_DAPI_Tools;
+
+
+/**
+ * IEEE 754 half precision floats stored in shorts
+ * - 11 bits of precision, relative error <= 2^-11 in the normal range (|v| >= 2^-14)
+ * - values beyond the half range are clamped to +/-65504, there is no infinity or NaN
+ * @author phm
+ */
+public final class HalfFloat {
+
+    public static final float MAX = 65504f;
+
+    // float value of each of the 65536 halves
+    private static final float[] VALUES = new float[65536];
+
+    static {
+        for (int h = 0; h < 65536; h++) {
+            int exp = (h >>> 10) & 0x1f, mantissa = h & 0x3ff;
+            float v;
+            if (exp == 0)
+                v = mantissa * 0x1p-24f;
+            else if (exp == 31)
+                v = (mantissa == 0) ? Float.POSITIVE_INFINITY : Float.NaN;
+            else
+                v = Float.intBitsToFloat(((exp - 15 + 127) << 23) | (mantissa << 13));
+            VALUES[h] = ((h & 0x8000) != 0) ? -v : v;
+        }
+    }
+
+
+    private HalfFloat() {
+    }
+
+
+    /**
+     * Nearest half, ties to even
+     * @param v
+     * @return half bits
+     */
+    public static short fromFloat(float v) {
+        int bits = Float.floatToRawIntBits(v);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if (abs >= 0x477ff000)
+            // NaN, infinity and rounding beyond 65504
+            return((short)(sign | 0x7bff));
+        if (abs < 0x38800000) {
+            // subnormal half, multiple of 2^-24
+            if (abs < 0x33000000)
+                return((short)sign);
+            int exp = abs >>> 23;
+            int mantissa = (abs & 0x7fffff) | 0x800000;
+            int shift = 126 - exp;
+            int half = mantissa >>> shift;
+            int rest = mantissa & ((1 << shift) - 1), mid = 1 << (shift - 1);
+            if (rest > mid || (rest == mid && (half & 1) != 0))
+                half++;
+            return((short)(sign | half));
+        }
+        // rebias exponent, round the 13 dropped mantissa bits
+        int half = (abs - 0x38000000) >>> 13;
+        int rest = abs & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+            half++;
+        return((short)(sign | half));
+    }
+
+
+    /**
+     * @param h half bits
+     * @return float value
+     */
+    public static float toFloat(short h) {
+        return(VALUES[h & 0xffff]);
+    }
+}
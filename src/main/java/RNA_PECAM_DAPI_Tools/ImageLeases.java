@@ -0,0 +1,224 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Images of a folder shared by several nodes mounting the same filesystem
+ * - an image is claimed by creating <image>.lease (atomic create, only one node wins),
+ *   the lease holds a token of the claim, node id and a new generation for each claim
+ * - the owner touches its leases while working, a lease not touched for the timeout is stale
+ * - a stale lease is taken over under a takeover lock (atomic create, only one node wins),
+ *   it is checked again under the lock, removed and claimed again
+ * - heartbeat and release only touch or delete a lease still holding the owner token
+ * - images are done when their results are saved (see ResultsCheckpoint), checked again once claimed
+ * @author phm
+ */
+public class ImageLeases implements AutoCloseable {
+
+    private final File dir;
+    private final long timeoutMs;
+    public final String nodeId;
+    private final Predicate<String> isDone;
+    // leases of this node and their token
+    private final Map<Path, String> owned = new ConcurrentHashMap<>();
+    private final Thread heartbeat;
+
+
+    /**
+     * @param dir leases directory
+     * @param timeoutMin lease not refreshed for this time is stale
+     * @param isDone image results already saved
+     */
+    public ImageLeases(File dir, double timeoutMin, Predicate<String> isDone) {
+        this(dir, timeoutMin, isDone, jvmId());
+    }
+
+
+    /**
+     * @param dir leases directory
+     * @param timeoutMin lease not refreshed for this time is stale
+     * @param isDone image results already saved
+     * @param nodeId
+     */
+    ImageLeases(File dir, double timeoutMin, Predicate<String> isDone, String nodeId) {
+        this.dir = dir;
+        this.isDone = isDone;
+        this.timeoutMs = (long)(timeoutMin*60000);
+        this.nodeId = nodeId.replaceAll("[^A-Za-z0-9._-]", "_");
+        dir.mkdirs();
+        heartbeat = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(Math.max(1000, timeoutMs/4));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                touchOwned();
+            }
+        }, "RNA_PECAM_DAPI-lease-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+
+    // pid@host
+    private static String jvmId() {
+        String[] jvm = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        return((jvm.length > 1) ? jvm[1]+"-"+jvm[0] : jvm[0]);
+    }
+
+
+    /**
+     * Token written in a lease, null if there is no lease
+     */
+    private static String token(Path lease) throws IOException {
+        try {
+            return(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return(null);
+        }
+    }
+
+
+    /**
+     * Refresh the leases still holding the token of this node, forget the others
+     */
+    void touchOwned() {
+        for (Map.Entry<Path, String> e : owned.entrySet()) {
+            Path lease = e.getKey();
+            try {
+                if (e.getValue().equals(token(lease)))
+                    lease.toFile().setLastModified(System.currentTimeMillis());
+                else {
+                    owned.remove(lease, e.getValue());
+                    System.out.println("Lease "+lease.getFileName()+" taken over by another node");
+                }
+            } catch (IOException ex) {
+                System.out.println("Can't refresh lease "+lease+" : "+ex.getMessage());
+            }
+        }
+    }
+
+
+    private Path lease(String imageFile) {
+        return new File(dir, FilenameUtils.getBaseName(imageFile)+".lease").toPath();
+    }
+
+
+    /**
+     * Claim an image for this node
+     * @param imageFile
+     * @return true if this node must analyze the image
+     * @throws java.io.IOException
+     */
+    public boolean claim(String imageFile) throws IOException {
+        if (isDone.test(imageFile))
+            return(false);
+        Path lease = lease(imageFile);
+        String token = nodeId+" "+UUID.randomUUID();
+        try {
+            Files.write(Files.createFile(lease), token.getBytes(StandardCharsets.UTF_8));
+        } catch (FileAlreadyExistsException e) {
+            if (!takeOver(lease))
+                return(false);
+            System.out.println("Taking over stale lease of "+imageFile);
+            return(claim(imageFile));
+        }
+        // results may have been saved between the check and the lease creation
+        if (isDone.test(imageFile)) {
+            Files.deleteIfExists(lease);
+            return(false);
+        }
+        owned.put(lease, token);
+        return(true);
+    }
+
+
+    /**
+     * Remove a stale lease
+     * takers of the same lease are serialized by <image>.lease.takeover (atomic create),
+     * the lease is checked again under it, so a lease renewed meanwhile is never removed
+     * @return true if the stale lease was removed by this node
+     */
+    private boolean takeOver(Path lease) throws IOException {
+        Path lock = new File(dir, lease.getFileName()+".takeover").toPath();
+        try {
+            Files.write(Files.createFile(lock), nodeId.getBytes(StandardCharsets.UTF_8));
+        } catch (FileAlreadyExistsException e) {
+            // lock left by a node stopped while taking over
+            if (isStale(lock))
+                Files.deleteIfExists(lock);
+            return(false);
+        }
+        try {
+            if (token(lease) == null || !isStale(lease))
+                return(false);
+            Files.deleteIfExists(lease);
+            return(true);
+        } finally {
+            Files.deleteIfExists(lock);
+        }
+    }
+
+
+    private boolean isStale(Path file) {
+        long modified = file.toFile().lastModified();
+        return(modified != 0 && System.currentTimeMillis() - modified >= timeoutMs);
+    }
+
+
+    /**
+     * Give an image back, once its results are saved or after a failure
+     * @param imageFile
+     * @throws java.io.IOException
+     */
+    public void release(String imageFile) throws IOException {
+        Path lease = lease(imageFile);
+        String token = owned.remove(lease);
+        if (token != null && token.equals(token(lease)))
+            Files.deleteIfExists(lease);
+    }
+
+
+    /**
+     * All images done, by any node
+     * @param imageFiles
+     * @return
+     */
+    public boolean allDone(List<String> imageFiles) {
+        for (String f : imageFiles)
+            if (!isDone.test(f))
+                return(false);
+        return(true);
+    }
+
+
+    @Override
+    public void close() {
+        heartbeat.interrupt();
+        for (Map.Entry<Path, String> e : owned.entrySet()) {
+            Path lease = e.getKey();
+            try {
+                if (e.getValue().equals(token(lease)))
+                    Files.deleteIfExists(lease);
+            } catch (IOException ex) {
+                System.out.println("Can't remove lease "+lease+" : "+ex.getMessage());
+            }
+        }
+        owned.clear();
+    }
+}
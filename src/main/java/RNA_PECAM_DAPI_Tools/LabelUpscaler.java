@@ -0,0 +1,172 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Objects of a label image at a lower resolution, built at full resolution without resizing the image
+ * - each label pixel covers the full resolution pixels mapped to it by nearest neighbour,
+ *   same mapping as ImagePlus.resize(..., "none")
+ * - label rows are scanned as x runs, voxels are counted per label from the runs
+ * - objects are only built for labels in the volume range, in label order
+ * @author phm
+ */
+public class LabelUpscaler {
+
+    private LabelUpscaler() {
+    }
+
+
+    // runs of one label slice, label image y, full resolution x
+    private static class Runs {
+        int size = 0;
+        int[] label = new int[256], y = new int[256], x0 = new int[256], x1 = new int[256];
+
+        void add(int rl, int ry, int rx0, int rx1) {
+            if (size == label.length) {
+                int n = 2*size;
+                label = Arrays.copyOf(label, n);
+                y = Arrays.copyOf(y, n);
+                x0 = Arrays.copyOf(x0, n);
+                x1 = Arrays.copyOf(x1, n);
+            }
+            label[size] = rl;
+            y[size] = ry;
+            x0[size] = rx0;
+            x1[size] = rx1;
+            size++;
+        }
+    }
+
+
+    /**
+     * Full resolution range of each label pixel along one axis
+     * @param src label image size
+     * @param dst full resolution size
+     * @return [first, last] per label pixel, first > last when no pixel maps to it
+     */
+    private static int[][] ranges(int src, int dst) {
+        int[] first = new int[src], last = new int[src];
+        Arrays.fill(first, Integer.MAX_VALUE);
+        Arrays.fill(last, -1);
+        double scale = (double)dst/src;
+        double srcCenter = src/2.0, dstCenter = dst/2.0;
+        for (int d = 0; d < dst; d++) {
+            int s = (int)((d - dstCenter)/scale + srcCenter);
+            s = Math.min(Math.max(s, 0), src - 1);
+            first[s] = Math.min(first[s], d);
+            last[s] = Math.max(last[s], d);
+        }
+        return(new int[][] {first, last});
+    }
+
+
+    /**
+     * Objects of a label image, scaled to full resolution and filtered by volume
+     * @param labels label image, 0 = background
+     * @param width full resolution width
+     * @param height full resolution height
+     * @param depth full resolution slices
+     * @param cal full resolution calibration
+     * @param minVol
+     * @param maxVol
+     * @return objects with volume in [minVol, maxVol], labelled from 1 in label order
+     */
+    public static Objects3DIntPopulation upscale(ImagePlus labels, int width, int height, int depth, Calibration cal, double minVol, double maxVol) {
+        ImageStack stack = labels.getStack();
+        int lw = labels.getWidth(), lh = labels.getHeight(), ld = stack.getSize();
+        int[][] xr = ranges(lw, width), yr = ranges(lh, height), zr = ranges(ld, depth);
+
+        // x runs of each label slice, in full resolution x
+        Runs[] slices = new Runs[ld];
+        IntStream.range(0, ld).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            Runs runs = new Runs();
+            for (int y = 0; y < lh; y++) {
+                if (yr[0][y] > yr[1][y])
+                    continue;
+                int offset = y*lw;
+                int x = 0;
+                while (x < lw) {
+                    int l = (int)ip.getf(offset + x);
+                    int start = x;
+                    while (x < lw && (int)ip.getf(offset + x) == l)
+                        x++;
+                    if (l == 0)
+                        continue;
+                    int dx0 = Integer.MAX_VALUE, dx1 = -1;
+                    for (int s = start; s < x; s++) {
+                        dx0 = Math.min(dx0, xr[0][s]);
+                        dx1 = Math.max(dx1, xr[1][s]);
+                    }
+                    if (dx0 <= dx1)
+                        runs.add(l, y, dx0, dx1);
+                }
+            }
+            slices[z] = runs;
+        });
+
+        // full resolution voxels per label
+        Map<Integer, Long> voxels = new HashMap<>();
+        for (int z = 0; z < ld; z++) {
+            int nz = Math.max(0, zr[1][z] - zr[0][z] + 1);
+            Runs runs = slices[z];
+            for (int r = 0; r < runs.size; r++) {
+                long n = (long)(runs.x1[r] - runs.x0[r] + 1) * (yr[1][runs.y[r]] - yr[0][runs.y[r]] + 1) * nz;
+                voxels.merge(runs.label[r], n, Long::sum);
+            }
+        }
+        int[] values = voxels.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        Map<Integer, Object3DInt> objects = new HashMap<>();
+        Objects3DIntPopulation pop = new Objects3DIntPopulation();
+        float label = 0;
+        for (int l : values) {
+            // same product as ObjectMeasurements
+            double vol = voxels.get(l) * cal.pixelWidth * cal.pixelWidth * cal.pixelDepth;
+            if (vol < minVol || vol > maxVol)
+                continue;
+            Object3DInt obj = new Object3DInt(++label);
+            obj.setVoxelSizeXY(cal.pixelWidth);
+            obj.setVoxelSizeZ(cal.pixelDepth);
+            objects.put(l, obj);
+            pop.addObject(obj);
+        }
+        if (objects.isEmpty())
+            return(pop);
+
+        // planes of each full resolution slice, built in parallel, added in z order
+        @SuppressWarnings("unchecked")
+        Map<Integer, Object3DPlane>[] planes = new Map[depth];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            int sz = Math.min(Math.max((int)((z - depth/2.0)/((double)depth/ld) + ld/2.0), 0), ld - 1);
+            Runs runs = slices[sz];
+            Map<Integer, Object3DPlane> slicePlanes = new HashMap<>();
+            for (int r = 0; r < runs.size; r++) {
+                Object3DInt obj = objects.get(runs.label[r]);
+                if (obj == null)
+                    continue;
+                Object3DPlane plane = slicePlanes.computeIfAbsent(runs.label[r], l -> new Object3DPlane(z));
+                float value = obj.getLabel();
+                for (int y = yr[0][runs.y[r]]; y <= yr[1][runs.y[r]]; y++)
+                    for (int x = runs.x0[r]; x <= runs.x1[r]; x++)
+                        plane.addVoxel(new VoxelInt(x, y, z, value));
+            }
+            planes[z] = slicePlanes;
+        });
+        for (int z = 0; z < depth; z++)
+            for (Map.Entry<Integer, Object3DPlane> e : planes[z].entrySet())
+                objects.get(e.getKey()).addPlane(e.getValue());
+        return(pop);
+    }
+}
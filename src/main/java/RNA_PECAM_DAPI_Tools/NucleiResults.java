@@ -0,0 +1,158 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+
+/**
+ * Results of the nuclei of one image, one primitive column per measurement
+ * row n is nuclei.get(n)
+ * schema : index, nucleus volume, vessel, nucleus DAPI mean intensity,
+ * then foci number, foci volume and foci integrated intensity of each gene
+ * foci of each gene are also kept one row per focus, with the nucleus they are in
+ * @author phm
+ */
+public class NucleiResults {
+
+    public final ArrayList<Nucleus> nuclei;
+    public final int size;
+    public final int nbGenes;
+    public final float[] index;
+    public final double[] nucVol;
+    public final boolean[] vessel;
+    // [gene-1][nucleus]
+    public final int[][] fociGene;
+    public final double[][] fociGeneVol;
+    public final double[] nucIntensity;
+    // sum of foci integrated intensity, NaN when foci were not measured in the gene channel
+    public final double[][] fociGeneInt;
+    // [gene-1] foci in nuclei, nucleus row of each focus
+    private final ObjectMeasurements[] foci;
+    private final int[][] fociNucleus;
+
+    private String imageName = "";
+    private double roisVolume;
+
+
+    public NucleiResults(ArrayList<Nucleus> nuclei, int nbGenes) {
+        this.nuclei = nuclei;
+        this.size = nuclei.size();
+        this.nbGenes = nbGenes;
+        index = new float[size];
+        nucVol = new double[size];
+        vessel = new boolean[size];
+        fociGene = new int[nbGenes][size];
+        fociGeneVol = new double[nbGenes][size];
+        nucIntensity = new double[size];
+        fociGeneInt = new double[nbGenes][size];
+        foci = new ObjectMeasurements[nbGenes];
+        fociNucleus = new int[nbGenes][0];
+    }
+
+
+    /**
+     * Foci of a gene found in nuclei
+     * @param gene
+     * @param measures foci measurements, intensities in the gene channel if measured
+     * @param nucleus nucleus row of each focus
+     */
+    public void setFoci(int gene, ObjectMeasurements measures, int[] nucleus) {
+        foci[gene-1] = measures;
+        fociNucleus[gene-1] = nucleus;
+    }
+
+
+    /**
+     * Image the nuclei come from
+     * @param imageName
+     * @param roisVolume volume of the image rois
+     */
+    public void setImage(String imageName, double roisVolume) {
+        this.imageName = imageName;
+        this.roisVolume = roisVolume;
+    }
+
+
+    /**
+     * Results file header
+     * @param nbGenes
+     * @return header line
+     */
+    public static String header(int nbGenes) {
+        StringBuilder sb = new StringBuilder("ImageName\tROI Volume\t#Nuclei\tNucleus volume (µm3)\tPECAM+\tNucleus DAPI mean intensity");
+        for (int g = 1; g <= nbGenes; g++)
+            sb.append("\t#Foci Gene").append(g).append("\tFoci Gene").append(g).append(" volume (µm3)")
+                    .append("\tFoci Gene").append(g).append(" integrated intensity");
+        return(sb.append("\n").toString());
+    }
+
+
+    /**
+     * Foci file header
+     * @return header line
+     */
+    public static String fociHeader() {
+        return("ImageName\tGene\t#Focus\t#Nucleus\tFocus volume (µm3)\tMean intensity\tMax intensity\tIntegrated intensity\n");
+    }
+
+
+    /**
+     * Write one row per nucleus
+     * @param out
+     * @throws java.io.IOException
+     */
+    public void write(Writer out) throws IOException {
+        String prefix = imageName + "\t" + roisVolume + "\t";
+        for (int n = 0; n < size; n++) {
+            out.write(prefix);
+            out.write(Double.toString(index[n]));
+            out.write('\t');
+            out.write(Double.toString(nucVol[n]));
+            out.write('\t');
+            out.write(vessel[n] ? "1.0" : "0.0");
+            out.write('\t');
+            out.write(Double.toString(nucIntensity[n]));
+            for (int g = 0; g < nbGenes; g++) {
+                out.write('\t');
+                out.write(Double.toString(fociGene[g][n]));
+                out.write('\t');
+                out.write(Double.toString(fociGeneVol[g][n]));
+                out.write('\t');
+                out.write(Double.toString(fociGeneInt[g][n]));
+            }
+            out.write('\n');
+        }
+    }
+
+
+    /**
+     * Write one row per focus, intensities are NaN when foci were not measured in the gene channel
+     * @param out
+     * @throws java.io.IOException
+     */
+    public void writeFoci(Writer out) throws IOException {
+        for (int g = 0; g < nbGenes; g++) {
+            ObjectMeasurements m = foci[g];
+            if (m == null)
+                continue;
+            String prefix = imageName + "\t" + (g+1) + "\t";
+            boolean measured = m.nbChannels > 0;
+            for (int f = 0; f < m.size; f++) {
+                out.write(prefix);
+                out.write(Double.toString(m.label[f]));
+                out.write('\t');
+                out.write(Double.toString(index[fociNucleus[g][f]]));
+                out.write('\t');
+                out.write(Double.toString(m.volume[f]));
+                out.write('\t');
+                out.write(Double.toString(measured ? m.intensityMean[0][f] : Double.NaN));
+                out.write('\t');
+                out.write(Double.toString(measured ? m.intensityMax[0][f] : Double.NaN));
+                out.write('\t');
+                out.write(Double.toString(measured ? m.integratedIntensity[0][f] : Double.NaN));
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.util.List;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Nuclei rasterised once into a label volume restricted to their bounding box
+ * slices without nucleus are never allocated
+ * labels are stored as unsigned 16 bits, 32 bits only above 65535 nuclei
+ * @author phm
+ */
+public class NucleusLabelIndex {
+
+    private int xmin = Integer.MAX_VALUE, ymin = Integer.MAX_VALUE, zmin = Integer.MAX_VALUE;
+    private int xmax = -1, ymax = -1, zmax = -1;
+    private int width, height;
+    private short[][] shortLabels;
+    private int[][] intLabels;
+
+
+    public NucleusLabelIndex(List<Nucleus> nuclei) {
+        // bounding box of all nuclei
+        for (Nucleus nucleus : nuclei) {
+            for (Object3DPlane plane : nucleus.nucleus.getObject3DPlanes()) {
+                zmin = Math.min(zmin, plane.getZPlane());
+                zmax = Math.max(zmax, plane.getZPlane());
+                for (VoxelInt v : plane.getVoxels()) {
+                    xmin = Math.min(xmin, v.getX());
+                    xmax = Math.max(xmax, v.getX());
+                    ymin = Math.min(ymin, v.getY());
+                    ymax = Math.max(ymax, v.getY());
+                }
+            }
+        }
+        if (zmax < 0)
+            return;
+        width = xmax - xmin + 1;
+        height = ymax - ymin + 1;
+        int depth = zmax - zmin + 1;
+        boolean compact = nuclei.size() < 65535;
+        if (compact)
+            shortLabels = new short[depth][];
+        else
+            intLabels = new int[depth][];
+
+        // label = nucleus index + 1, 0 is background
+        for (int n = 0; n < nuclei.size(); n++) {
+            int label = n + 1;
+            for (Object3DPlane plane : nuclei.get(n).nucleus.getObject3DPlanes()) {
+                int z = plane.getZPlane() - zmin;
+                if (compact && shortLabels[z] == null)
+                    shortLabels[z] = new short[width*height];
+                else if (!compact && intLabels[z] == null)
+                    intLabels[z] = new int[width*height];
+                for (VoxelInt v : plane.getVoxels()) {
+                    int xy = (v.getY() - ymin) * width + v.getX() - xmin;
+                    if (compact)
+                        shortLabels[z][xy] = (short)label;
+                    else
+                        intLabels[z][xy] = label;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Nucleus at voxel
+     * @param x
+     * @param y
+     * @param z
+     * @return index of the nucleus in the nuclei list, -1 if none
+     */
+    public int indexAt(int x, int y, int z) {
+        if (x < xmin || x > xmax || y < ymin || y > ymax || z < zmin || z > zmax)
+            return(-1);
+        int xy = (y - ymin) * width + x - xmin;
+        if (shortLabels != null) {
+            short[] slice = shortLabels[z - zmin];
+            return((slice == null) ? -1 : (slice[xy] & 0xffff) - 1);
+        }
+        int[] slice = intLabels[z - zmin];
+        return((slice == null) ? -1 : slice[xy] - 1);
+    }
+}
@@ -0,0 +1,138 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.measure.Calibration;
+import java.util.Arrays;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Foreground voxels stored as x runs (z, y, x0..x1), grouped into objects with a UnionFind
+ * objects are only created for groups in the volume range
+ * @author phm
+ */
+class ObjectBuilder {
+
+    int size = 0;
+    int[] z = new int[1024], y = new int[1024], x0 = new int[1024], x1 = new int[1024];
+    // root run of each object of the last build, in population order
+    int[] objectRoots;
+
+
+    /**
+     * Add a run
+     * @return run index
+     */
+    int add(int rz, int ry, int rx0, int rx1) {
+        if (size == z.length) {
+            int n = 2*size;
+            z = Arrays.copyOf(z, n);
+            y = Arrays.copyOf(y, n);
+            x0 = Arrays.copyOf(x0, n);
+            x1 = Arrays.copyOf(x1, n);
+        }
+        z[size] = rz;
+        y[size] = ry;
+        x0[size] = rx0;
+        x1[size] = rx1;
+        return(size++);
+    }
+
+
+    /**
+     * Runs touch in 26-connectivity, rows must be neighbours
+     */
+    boolean overlap(int a, int b) {
+        return(x0[a] <= x1[b]+1 && x0[b] <= x1[a]+1);
+    }
+
+
+    /**
+     * Union runs of row [a0, a1[ with touching runs of row [b0, b1[, runs of a row are sorted
+     */
+    void unionRows(UnionFind uf, int a0, int a1, int b0, int b1) {
+        int b = b0;
+        for (int a = a0; a < a1; a++) {
+            while (b < b1 && x1[b]+1 < x0[a])
+                b++;
+            for (int bb = b; bb < b1 && x0[bb] <= x1[a]+1; bb++)
+                uf.union(a, bb);
+        }
+    }
+
+
+    /**
+     * Union runs of slice z with touching runs of the previous row
+     * @param rowStart first run of each row, row = z*rowsPerSlice + y, one more entry for the end
+     */
+    void unionInSlice(UnionFind uf, int[] rowStart, int rowsPerSlice, int z) {
+        for (int y = 1; y < rowsPerSlice; y++) {
+            int row = z*rowsPerSlice + y;
+            unionRows(uf, rowStart[row], rowStart[row+1], rowStart[row-1], rowStart[row]);
+        }
+    }
+
+
+    /**
+     * Union runs of slice z with touching runs of the 3 neighbour rows in slice z-1
+     * @param rowStart first run of each row, row = z*rowsPerSlice + y, one more entry for the end
+     */
+    void unionWithPreviousSlice(UnionFind uf, int[] rowStart, int rowsPerSlice, int z) {
+        for (int y = 0; y < rowsPerSlice; y++) {
+            int row = z*rowsPerSlice + y;
+            int a0 = rowStart[row], a1 = rowStart[row+1];
+            if (a0 == a1)
+                continue;
+            for (int yy = Math.max(0, y-1); yy <= Math.min(rowsPerSlice-1, y+1); yy++) {
+                int prev = (z-1)*rowsPerSlice + yy;
+                unionRows(uf, a0, a1, rowStart[prev], rowStart[prev+1]);
+            }
+        }
+    }
+
+
+    /**
+     * One object per group of runs with volume in [minVol, maxVol], labels follow the first run of each group
+     * @param uf groups of runs
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @return population
+     */
+    Objects3DIntPopulation build(UnionFind uf, Calibration cal, double minVol, double maxVol) {
+        int[] root = new int[size];
+        long[] voxels = new long[size];
+        for (int r = 0; r < size; r++) {
+            root[r] = uf.find(r);
+            voxels[root[r]] += x1[r] - x0[r] + 1;
+        }
+        Object3DInt[] objects = new Object3DInt[size];
+        Objects3DIntPopulation pop = new Objects3DIntPopulation();
+        int[] roots = new int[size];
+        float label = 0;
+        for (int r = 0; r < size; r++) {
+            int g = root[r];
+            if (g == r) {
+                // same product as ObjectMeasurements
+                double vol = voxels[g] * cal.pixelWidth * cal.pixelWidth * cal.pixelDepth;
+                if (vol < minVol || vol > maxVol)
+                    continue;
+                objects[g] = new Object3DInt(++label);
+                objects[g].setVoxelSizeXY(cal.pixelWidth);
+                objects[g].setVoxelSizeZ(cal.pixelDepth);
+                pop.addObject(objects[g]);
+                roots[(int)label - 1] = g;
+            }
+        }
+        for (int r = 0; r < size; r++) {
+            Object3DInt obj = objects[root[r]];
+            if (obj == null)
+                continue;
+            for (int x = x0[r]; x <= x1[r]; x++)
+                obj.addVoxel(new VoxelInt(x, y[r], z[r], obj.getLabel()));
+        }
+        objectRoots = Arrays.copyOf(roots, (int)label);
+        return(pop);
+    }
+}
@@ -0,0 +1,401 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Measurements of all objects of a population in primitive columns
+ * computed in one sweep over the voxels, slice by slice, with the raw channels read at the same time
+ * - slices are cut in z slabs measured in parallel, each slab accumulates the objects it touches
+ *   and slabs are reduced at the end
+ * row i is the object i of the population list
+ * centroid and bounding box in pixels, volume in calibrated units
+ * intensities [channel][row] : sum, max, mean and integrated (mean * volume)
+ * - mean is over the voxels inside the channel, objects without any have intensities 0
+ * @author phm
+ */
+public class ObjectMeasurements {
+
+    public final List<Object3DInt> objects;
+    public final int size;
+    public final float[] label;
+    public final int[] voxelCount;
+    public final double[] volume;
+    public final double[] centroidX, centroidY, centroidZ;
+    public final int[] xMin, xMax, yMin, yMax, zMin, zMax;
+    public final int nbChannels;
+    public final double[][] intensitySum, intensityMean, integratedIntensity;
+    public final float[][] intensityMax;
+
+
+    // sums of the objects touching one slab, local row l is object rows[l]
+    private static class Slab {
+        final int z0, z1;
+        int[] rows;
+        long[] count, sx, sy, sz;
+        int[] x0, x1, y0, y1, zMin, zMax;
+        double[][] sum;
+        float[][] max;
+        long[][] sampled;
+
+        Slab(int z0, int z1) {
+            this.z0 = z0;
+            this.z1 = z1;
+        }
+    }
+
+
+    // growable int array
+    private static class IntList {
+        int size = 0;
+        int[] values = new int[16];
+
+        void add(int v) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, 2*size);
+            values[size++] = v;
+        }
+    }
+
+
+    public ObjectMeasurements(Objects3DIntPopulation pop, ImagePlus... channels) {
+        this(pop.getObjects3DInt(), channels);
+    }
+
+
+    /**
+     * @param objects
+     * @param channels raw images to measure intensities in, same size as the objects image
+     */
+    public ObjectMeasurements(List<Object3DInt> objects, ImagePlus... channels) {
+        this(objects, channels.length);
+        sweep(channels);
+    }
+
+
+    /**
+     * Objects with intensities of one channel already summed over their voxels
+     * @param objects
+     * @param sum intensity sum of each object
+     * @param max intensity max of each object
+     */
+    public ObjectMeasurements(List<Object3DInt> objects, double[] sum, float[] max) {
+        this(objects, 1);
+        sweep(new ImagePlus[0]);
+        long[][] sampled = new long[1][size];
+        for (int i = 0; i < size; i++) {
+            intensitySum[0][i] = sum[i];
+            intensityMax[0][i] = max[i];
+            sampled[0][i] = voxelCount[i];
+        }
+        intensities(sampled);
+    }
+
+
+    private ObjectMeasurements(List<Object3DInt> objects, int nbChannels) {
+        this.objects = new ArrayList<>(objects);
+        size = objects.size();
+        this.nbChannels = nbChannels;
+        label = new float[size];
+        voxelCount = new int[size];
+        volume = new double[size];
+        centroidX = new double[size];
+        centroidY = new double[size];
+        centroidZ = new double[size];
+        xMin = new int[size];
+        xMax = new int[size];
+        yMin = new int[size];
+        yMax = new int[size];
+        zMin = new int[size];
+        zMax = new int[size];
+        intensitySum = new double[nbChannels][size];
+        intensityMean = new double[nbChannels][size];
+        integratedIntensity = new double[nbChannels][size];
+        intensityMax = new float[nbChannels][size];
+    }
+
+
+    /**
+     * Geometry of all objects, intensities of the given channels
+     * @param channels first channels, the others are left to the caller
+     */
+    private void sweep(ImagePlus[] channels) {
+        // planes of all objects by slice
+        int depth = 0;
+        for (Object3DInt obj : objects)
+            for (Object3DPlane plane : obj.getObject3DPlanes())
+                depth = Math.max(depth, plane.getZPlane() + 1);
+        List<List<Object3DPlane>> planes = new ArrayList<>(depth);
+        List<IntList> planeRows = new ArrayList<>(depth);
+        for (int z = 0; z < depth; z++) {
+            planes.add(new ArrayList<>());
+            planeRows.add(new IntList());
+        }
+        for (int i = 0; i < size; i++) {
+            for (Object3DPlane plane : objects.get(i).getObject3DPlanes()) {
+                int z = plane.getZPlane();
+                if (z < 0 || plane.getVoxels().isEmpty())
+                    continue;
+                planes.get(z).add(plane);
+                planeRows.get(z).add(i);
+            }
+        }
+        ImageStack[] stacks = new ImageStack[channels.length];
+        for (int c = 0; c < channels.length; c++)
+            stacks[c] = channels[c].getStack();
+
+        int nSlabs = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+        Slab[] slabs = new Slab[nSlabs];
+        for (int s = 0; s < nSlabs; s++)
+            slabs[s] = new Slab(s*depth/nSlabs, (s+1)*depth/nSlabs);
+        CpuFilters.parallelFor(nSlabs, s -> measureSlab(slabs[s], planes, planeRows, stacks));
+
+        // reduce slabs
+        long[] count = new long[size], sx = new long[size], sy = new long[size], sz = new long[size];
+        long[][] sampled = new long[stacks.length][size];
+        Arrays.fill(xMin, Integer.MAX_VALUE);
+        Arrays.fill(yMin, Integer.MAX_VALUE);
+        Arrays.fill(zMin, Integer.MAX_VALUE);
+        Arrays.fill(xMax, -1);
+        Arrays.fill(yMax, -1);
+        Arrays.fill(zMax, -1);
+        for (int c = 0; c < stacks.length; c++)
+            Arrays.fill(intensityMax[c], -Float.MAX_VALUE);
+        for (Slab slab : slabs) {
+            for (int l = 0; l < slab.rows.length; l++) {
+                int i = slab.rows[l];
+                count[i] += slab.count[l];
+                sx[i] += slab.sx[l];
+                sy[i] += slab.sy[l];
+                sz[i] += slab.sz[l];
+                xMin[i] = Math.min(xMin[i], slab.x0[l]);
+                xMax[i] = Math.max(xMax[i], slab.x1[l]);
+                yMin[i] = Math.min(yMin[i], slab.y0[l]);
+                yMax[i] = Math.max(yMax[i], slab.y1[l]);
+                zMin[i] = Math.min(zMin[i], slab.zMin[l]);
+                zMax[i] = Math.max(zMax[i], slab.zMax[l]);
+                for (int c = 0; c < stacks.length; c++) {
+                    intensitySum[c][i] += slab.sum[c][l];
+                    intensityMax[c][i] = Math.max(intensityMax[c][i], slab.max[c][l]);
+                    sampled[c][i] += slab.sampled[c][l];
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            Object3DInt obj = objects.get(i);
+            label[i] = obj.getLabel();
+            voxelCount[i] = (int)count[i];
+            double vxy = obj.getVoxelSizeXY();
+            volume[i] = count[i] * vxy * vxy * obj.getVoxelSizeZ();
+            if (count[i] > 0) {
+                centroidX[i] = (double)sx[i] / count[i];
+                centroidY[i] = (double)sy[i] / count[i];
+                centroidZ[i] = (double)sz[i] / count[i];
+            }
+        }
+        intensities(sampled);
+    }
+
+
+    /**
+     * Mean and integrated intensities from the sums
+     * @param sampled voxels read in each channel, per object
+     */
+    private void intensities(long[][] sampled) {
+        for (int c = 0; c < sampled.length; c++) {
+            for (int i = 0; i < size; i++) {
+                if (sampled[c][i] == 0) {
+                    intensityMax[c][i] = 0;
+                    continue;
+                }
+                intensityMean[c][i] = intensitySum[c][i] / sampled[c][i];
+                integratedIntensity[c][i] = intensityMean[c][i] * volume[i];
+            }
+        }
+    }
+
+
+    private void measureSlab(Slab slab, List<List<Object3DPlane>> planes, List<IntList> planeRows, ImageStack[] stacks) {
+        // local row of each object touching the slab
+        Map<Integer, Integer> local = new HashMap<>();
+        IntList rows = new IntList();
+        for (int z = slab.z0; z < slab.z1; z++) {
+            IntList zRows = planeRows.get(z);
+            for (int p = 0; p < zRows.size; p++)
+                if (local.putIfAbsent(zRows.values[p], rows.size) == null)
+                    rows.add(zRows.values[p]);
+        }
+        int n = rows.size;
+        slab.rows = Arrays.copyOf(rows.values, n);
+        slab.count = new long[n];
+        slab.sx = new long[n];
+        slab.sy = new long[n];
+        slab.sz = new long[n];
+        slab.x0 = new int[n];
+        slab.x1 = new int[n];
+        slab.y0 = new int[n];
+        slab.y1 = new int[n];
+        slab.zMin = new int[n];
+        slab.zMax = new int[n];
+        Arrays.fill(slab.x0, Integer.MAX_VALUE);
+        Arrays.fill(slab.y0, Integer.MAX_VALUE);
+        Arrays.fill(slab.zMin, Integer.MAX_VALUE);
+        Arrays.fill(slab.x1, -1);
+        Arrays.fill(slab.y1, -1);
+        Arrays.fill(slab.zMax, -1);
+        int nbStacks = stacks.length;
+        slab.sum = new double[nbStacks][n];
+        slab.max = new float[nbStacks][n];
+        slab.sampled = new long[nbStacks][n];
+        for (float[] max : slab.max)
+            Arrays.fill(max, -Float.MAX_VALUE);
+
+        ImageProcessor[] ips = new ImageProcessor[nbStacks];
+        int[] widths = new int[nbStacks], heights = new int[nbStacks];
+        for (int c = 0; c < nbStacks; c++) {
+            widths[c] = stacks[c].getWidth();
+            heights[c] = stacks[c].getHeight();
+        }
+        for (int z = slab.z0; z < slab.z1; z++) {
+            List<Object3DPlane> zPlanes = planes.get(z);
+            if (zPlanes.isEmpty())
+                continue;
+            for (int c = 0; c < nbStacks; c++)
+                ips[c] = (z < stacks[c].getSize()) ? stacks[c].getProcessor(z+1) : null;
+            IntList zRows = planeRows.get(z);
+            for (int p = 0; p < zPlanes.size(); p++) {
+                int l = local.get(zRows.values[p]);
+                List<VoxelInt> voxels = zPlanes.get(p).getVoxels();
+                long sx = 0, sy = 0;
+                int x0 = slab.x0[l], x1 = slab.x1[l], y0 = slab.y0[l], y1 = slab.y1[l];
+                for (VoxelInt v : voxels) {
+                    int x = v.getX(), y = v.getY();
+                    sx += x;
+                    sy += y;
+                    if (x < x0) x0 = x;
+                    if (x > x1) x1 = x;
+                    if (y < y0) y0 = y;
+                    if (y > y1) y1 = y;
+                    for (int c = 0; c < nbStacks; c++) {
+                        // voxels outside the channel are not sampled
+                        if (ips[c] == null || x < 0 || y < 0 || x >= widths[c] || y >= heights[c])
+                            continue;
+                        float value = ips[c].getf(y*widths[c] + x);
+                        slab.sum[c][l] += value;
+                        slab.sampled[c][l]++;
+                        if (value > slab.max[c][l])
+                            slab.max[c][l] = value;
+                    }
+                }
+                slab.count[l] += voxels.size();
+                slab.sx[l] += sx;
+                slab.sy[l] += sy;
+                slab.sz[l] += (long)z * voxels.size();
+                slab.x0[l] = x0;
+                slab.x1[l] = x1;
+                slab.y0[l] = y0;
+                slab.y1[l] = y1;
+                slab.zMin[l] = Math.min(slab.zMin[l], z);
+                slab.zMax[l] = Math.max(slab.zMax[l], z);
+            }
+        }
+    }
+
+
+    /**
+     * Centroid rounded to the nearest voxel
+     * @param i
+     * @return x, y, z
+     */
+    public int[] centroidVoxel(int i) {
+        return new int[] {(int)Math.round(centroidX[i]), (int)Math.round(centroidY[i]), (int)Math.round(centroidZ[i])};
+    }
+
+
+    /**
+     * Sum of objects volume
+     * @return volume
+     */
+    public double totalVolume() {
+        double sum = 0;
+        for (double v : volume)
+            sum += v;
+        return(sum);
+    }
+
+
+    /**
+     * Rows of objects with volume in [min, max]
+     * @param min
+     * @param max
+     * @return rows, in population order
+     */
+    public int[] rowsInVolumeRange(double min, double max) {
+        return IntStream.range(0, size).filter(i -> volume[i] >= min && volume[i] <= max).toArray();
+    }
+
+
+    /**
+     * Measurements of some rows, without measuring again
+     * labels are read again from the objects (population labels may have been reset)
+     * @param rows
+     * @return measurements
+     */
+    public ObjectMeasurements subset(int[] rows) {
+        return new ObjectMeasurements(this, rows);
+    }
+
+
+    private ObjectMeasurements(ObjectMeasurements all, int[] rows) {
+        size = rows.length;
+        objects = new ArrayList<>(size);
+        label = new float[size];
+        voxelCount = new int[size];
+        volume = new double[size];
+        centroidX = new double[size];
+        centroidY = new double[size];
+        centroidZ = new double[size];
+        xMin = new int[size];
+        xMax = new int[size];
+        yMin = new int[size];
+        yMax = new int[size];
+        zMin = new int[size];
+        zMax = new int[size];
+        nbChannels = all.nbChannels;
+        intensitySum = new double[nbChannels][size];
+        intensityMean = new double[nbChannels][size];
+        integratedIntensity = new double[nbChannels][size];
+        intensityMax = new float[nbChannels][size];
+        for (int i = 0; i < size; i++) {
+            int r = rows[i];
+            objects.add(all.objects.get(r));
+            label[i] = objects.get(i).getLabel();
+            voxelCount[i] = all.voxelCount[r];
+            volume[i] = all.volume[r];
+            centroidX[i] = all.centroidX[r];
+            centroidY[i] = all.centroidY[r];
+            centroidZ[i] = all.centroidZ[r];
+            xMin[i] = all.xMin[r]; xMax[i] = all.xMax[r];
+            yMin[i] = all.yMin[r]; yMax[i] = all.yMax[r];
+            zMin[i] = all.zMin[r]; zMax[i] = all.zMax[r];
+            for (int c = 0; c < nbChannels; c++) {
+                intensitySum[c][i] = all.intensitySum[c][r];
+                intensityMean[c][i] = all.intensityMean[c][r];
+                integratedIntensity[c][i] = all.integratedIntensity[c][r];
+                intensityMax[c][i] = all.intensityMax[c][r];
+            }
+        }
+    }
+}
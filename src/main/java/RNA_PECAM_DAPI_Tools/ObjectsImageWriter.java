@@ -0,0 +1,132 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Objects images rendered and written on a background thread
+ * - each slice is drawn from the object planes, one channel per population
+ * - planes are Deflate compressed (CompressedTiffWriter), only one slice is in memory
+ * - the file is written as .part and renamed when complete
+ * at most maxPending images wait, further saves run on the calling thread
+ * @author phm
+ */
+public class ObjectsImageWriter {
+
+    private final ThreadPoolExecutor writer;
+    private final Map<String, Future<?>> pending = new ConcurrentHashMap<>();
+
+
+    public ObjectsImageWriter(int maxPending) {
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, maxPending)), r -> {
+            Thread t = new Thread(r, "RNA_PECAM_DAPI-objects-writer");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+
+    /**
+     * Queue an objects image
+     * @param path
+     * @param channels objects of each channel
+     * @param values value drawn in each channel
+     * @param width
+     * @param height
+     * @param depth
+     * @param bitDepth 8 or 16
+     * @param cal
+     */
+    public void submit(String path, List<List<Object3DInt>> channels, int[] values, int width, int height, int depth, int bitDepth, Calibration cal) {
+        pending.put(path, writer.submit(() -> {
+            write(path, channels, values, width, height, depth, bitDepth, cal);
+            return null;
+        }));
+    }
+
+
+    private static void write(String path, List<List<Object3DInt>> channels, int[] values, int width, int height, int depth, int bitDepth, Calibration cal)
+            throws IOException {
+        long t0 = System.currentTimeMillis();
+        int nc = channels.size();
+        int bytesPerPixel = (bitDepth == 8) ? 1 : 2;
+        // planes of each channel by slice
+        List<List<List<Object3DPlane>>> byZ = new ArrayList<>(nc);
+        for (List<Object3DInt> objects : channels) {
+            List<List<Object3DPlane>> slices = new ArrayList<>(depth);
+            for (int z = 0; z < depth; z++)
+                slices.add(new ArrayList<>());
+            for (Object3DInt obj : objects)
+                for (Object3DPlane plane : obj.getObject3DPlanes())
+                    if (plane.getZPlane() >= 0 && plane.getZPlane() < depth)
+                        slices.get(plane.getZPlane()).add(plane);
+            byZ.add(slices);
+        }
+        File file = new File(path);
+        File part = new File(path+".part");
+        byte[] pixels = new byte[width*height*bytesPerPixel];
+        try (CompressedTiffWriter tiff = new CompressedTiffWriter(part, width, height, bitDepth, nc, depth, cal)) {
+            for (int z = 0; z < depth; z++) {
+                for (int c = 0; c < nc; c++) {
+                    Arrays.fill(pixels, (byte)0);
+                    // values are below 256, high byte of 16 bits pixels stays 0
+                    byte value = (byte)values[c];
+                    for (Object3DPlane plane : byZ.get(c).get(z))
+                        for (VoxelInt v : plane.getVoxels())
+                            if (v.getX() >= 0 && v.getX() < width && v.getY() >= 0 && v.getY() < height)
+                                pixels[(v.getY()*width + v.getX())*bytesPerPixel] = value;
+                    tiff.writePlane(pixels);
+                }
+            }
+        }
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Objects image "+file.getName()+" written in "+(System.currentTimeMillis()-t0)+" ms");
+    }
+
+
+    /**
+     * Wait for an objects image to be written
+     * @param path
+     * @throws java.io.IOException if writing failed
+     */
+    public void await(String path) throws IOException {
+        Future<?> future = pending.remove(path);
+        if (future == null)
+            return;
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing "+path, ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Can't write "+path, ex.getCause());
+        }
+    }
+
+
+    /**
+     * Wait for all queued images
+     * @throws java.io.IOException
+     */
+    public void awaitAll() throws IOException {
+        for (String path : new ArrayList<>(pending.keySet()))
+            await(path);
+    }
+}
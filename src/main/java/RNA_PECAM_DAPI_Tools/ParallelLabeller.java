@@ -0,0 +1,130 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+
+/**
+ * 26-connected components of a binary mask, labelled in parallel
+ * - the mask is cut in z slabs, each slab is scanned as x runs and grouped with its own UnionFind
+ * - slabs are joined by a merge pass on the first slice of each slab
+ * - voxels are counted per component, objects are only built for components in the volume range
+ * labels follow the raster order of the first voxel of each object, as ImageLabeller
+ * @author phm
+ */
+public class ParallelLabeller {
+
+    private ParallelLabeller() {
+    }
+
+
+    private static class Slab {
+        final int z0, z1;
+        ObjectBuilder runs;
+        UnionFind uf;
+        // first run of each row of the slab, relative to the slab
+        int[] rowStart;
+        int offset;
+
+        Slab(int z0, int z1) {
+            this.z0 = z0;
+            this.z1 = z1;
+        }
+    }
+
+
+    /**
+     * Label and filter by volume
+     * @param img binary stack, foreground != 0
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @return objects with volume in [minVol, maxVol]
+     */
+    public static Objects3DIntPopulation label(ImagePlus img, Calibration cal, double minVol, double maxVol) {
+        return(label(BitMask.fromImage(img), cal, minVol, maxVol));
+    }
+
+
+    /**
+     * Label and filter by volume
+     * @param mask
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @return objects with volume in [minVol, maxVol]
+     */
+    public static Objects3DIntPopulation label(BitMask mask, Calibration cal, double minVol, double maxVol) {
+        return(label(mask, cal, minVol, maxVol, Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    /**
+     * Label on a given number of slabs
+     * @param mask
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @param slabsCount z slabs, bounded by the mask depth
+     * @return objects with volume in [minVol, maxVol]
+     */
+    static Objects3DIntPopulation label(BitMask mask, Calibration cal, double minVol, double maxVol, int slabsCount) {
+        int height = mask.height, depth = mask.depth;
+        int nSlabs = Math.max(1, Math.min(depth, slabsCount));
+        Slab[] slabs = new Slab[nSlabs];
+        for (int s = 0; s < nSlabs; s++)
+            slabs[s] = new Slab(s*depth/nSlabs, (s+1)*depth/nSlabs);
+
+        CpuFilters.parallelFor(nSlabs, s -> labelSlab(slabs[s], mask));
+
+        // all runs in slab order, which is the raster order
+        ObjectBuilder all = new ObjectBuilder();
+        int[] rowStart = new int[depth*height + 1];
+        for (Slab slab : slabs) {
+            slab.offset = all.size;
+            for (int r = 0; r < slab.runs.size; r++)
+                all.add(slab.runs.z[r], slab.runs.y[r], slab.runs.x0[r], slab.runs.x1[r]);
+            int rows = (slab.z1 - slab.z0)*height;
+            for (int row = 0; row < rows; row++)
+                rowStart[slab.z0*height + row] = slab.offset + slab.rowStart[row];
+        }
+        rowStart[depth*height] = all.size;
+        UnionFind uf = new UnionFind(all.size);
+        for (Slab slab : slabs) {
+            for (int r = 0; r < slab.runs.size; r++)
+                uf.setParent(slab.offset + r, slab.offset + slab.uf.find(r));
+            slab.runs = null;
+            slab.uf = null;
+        }
+        // merge across slab borders
+        for (int s = 1; s < nSlabs; s++)
+            if (slabs[s].z0 < slabs[s].z1)
+                all.unionWithPreviousSlice(uf, rowStart, height, slabs[s].z0);
+        return(all.build(uf, cal, minVol, maxVol));
+    }
+
+
+    private static void labelSlab(Slab slab, BitMask mask) {
+        ObjectBuilder runs = new ObjectBuilder();
+        int height = mask.height;
+        int nz = slab.z1 - slab.z0;
+        int[] rowStart = new int[nz*height + 1];
+        for (int z = slab.z0; z < slab.z1; z++) {
+            for (int y = 0; y < height; y++) {
+                rowStart[(z - slab.z0)*height + y] = runs.size;
+                mask.forEachRun(z, y, runs::add);
+            }
+        }
+        rowStart[nz*height] = runs.size;
+        UnionFind uf = new UnionFind(runs.size);
+        for (int z = 0; z < nz; z++) {
+            runs.unionInSlice(uf, rowStart, height, z);
+            if (z > 0)
+                runs.unionWithPreviousSlice(uf, rowStart, height, z);
+        }
+        slab.runs = runs;
+        slab.uf = uf;
+        slab.rowStart = rowStart;
+    }
+}
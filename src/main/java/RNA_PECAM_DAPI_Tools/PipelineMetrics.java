@@ -0,0 +1,335 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Wall time, CPU time, peak heap and voxel throughput of the analysis stages
+ * - a stage is recorded for the image started on the current thread,
+ *   an image going through pipeline stages is detached and attached on each thread
+ * - heap is sampled every 20 ms while stages run (process wide)
+ * - CPU time is given for the stage thread and for the whole process
+ *   (parallel filters run on other threads, concurrent images share the process),
+ *   thread CPU of the whole image is summed over the threads it was attached to
+ * - per image metrics are written next to results.xls, batch percentiles at the end
+ * @author phm
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+
+    private static final String HEADER = "stage,wall_ms,cpu_thread_ms,cpu_process_ms,peak_heap_mb,voxels,mvoxels_per_s";
+    private static final double MB = 1024*1024;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private final ThreadLocal<ImageRecord> current = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<Stage> active = new ConcurrentLinkedQueue<>();
+    // all finished stages of the batch
+    private final ConcurrentLinkedQueue<Stage> done = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger imagesDone = new AtomicInteger();
+    private final AtomicLong batchPeakHeap = new AtomicLong();
+    private Thread sampler;
+
+
+    /**
+     * Stages of one image, moved between threads with detachImage/attachImage
+     */
+    public class ImageRecord {
+        final String name;
+        final List<Stage> stages = new ArrayList<>();
+        final Stage total;
+        // thread CPU of the threads the image was attached to, and at the last attach
+        long threadCpu, attachCpu;
+
+        ImageRecord(String name) {
+            this.name = name;
+            this.total = new Stage("image", 0, this);
+            this.attachCpu = threadCpu();
+        }
+
+        // add the thread CPU since the last attach, before leaving the current thread
+        void detach() {
+            threadCpu += threadCpu() - attachCpu;
+        }
+    }
+
+
+    /**
+     * One measured stage, closed when done
+     */
+    public final class Stage implements AutoCloseable {
+        final String name;
+        final ImageRecord image;
+        final long wall0, cpu0, process0;
+        final AtomicLong peakHeap = new AtomicLong();
+        long voxels, wall, cpu, process;
+
+        private Stage(String name, long voxels, ImageRecord image) {
+            this.name = name;
+            this.voxels = voxels;
+            this.image = image;
+            this.wall0 = System.nanoTime();
+            this.cpu0 = threadCpu();
+            this.process0 = processCpu();
+            sampleHeap(this);
+        }
+
+        /**
+         * Voxels processed, when only known once the stage ran
+         */
+        public void setVoxels(long voxels) {
+            this.voxels = voxels;
+        }
+
+        @Override
+        public void close() {
+            if (image == null)
+                return;
+            wall = System.nanoTime() - wall0;
+            // the whole image moved between threads, its CPU is summed by detach
+            cpu = (this == image.total) ? image.threadCpu : threadCpu() - cpu0;
+            process = processCpu() - process0;
+            sampleHeap(this);
+            active.remove(this);
+            done.add(this);
+            if (this != image.total)
+                image.stages.add(this);
+        }
+
+        String csv() {
+            double seconds = wall / 1e9;
+            return name + "," + wall/1000000 + "," + cpu/1000000 + "," + process/1000000 + ","
+                    + String.format("%.1f", peakHeap.get()/MB) + "," + voxels + ","
+                    + ((voxels > 0 && seconds > 0) ? String.format("%.2f", voxels/seconds/1e6) : "");
+        }
+    }
+
+
+    private long threadCpu() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+
+    private long processCpu() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        return 0;
+    }
+
+
+    private void sampleHeap(Stage stage) {
+        long used = memory.getHeapMemoryUsage().getUsed();
+        stage.peakHeap.accumulateAndGet(used, Math::max);
+        batchPeakHeap.accumulateAndGet(used, Math::max);
+    }
+
+
+    private synchronized void startSampler() {
+        if (sampler != null)
+            return;
+        sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (Stage stage : active)
+                    sampleHeap(stage);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "RNA_PECAM_DAPI-heap-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+
+    /**
+     * Register as MBean RNA_PECAM_DAPI:type=PipelineMetrics
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("RNA_PECAM_DAPI:type=PipelineMetrics");
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Can't register metrics MBean : "+e.getMessage());
+        }
+    }
+
+
+    /**
+     * Start recording stages of an image on the current thread
+     * @param imageName
+     */
+    public void startImage(String imageName) {
+        current.set(new ImageRecord(imageName));
+        startSampler();
+    }
+
+
+    /**
+     * Detach the current image from this thread, to continue it on another one
+     * @return image record, null if none
+     */
+    public ImageRecord detachImage() {
+        ImageRecord record = current.get();
+        current.remove();
+        if (record != null)
+            record.detach();
+        return(record);
+    }
+
+
+    /**
+     * Continue on this thread an image detached from another one
+     * @param record
+     */
+    public void attachImage(ImageRecord record) {
+        if (record != null)
+            record.attachCpu = threadCpu();
+        current.set(record);
+    }
+
+
+    /**
+     * Start a stage of the current image
+     * @param name
+     * @param voxels voxels processed by the stage, 0 if not relevant
+     * @return stage, opened in a try-with-resources
+     */
+    public Stage stage(String name, long voxels) {
+        Stage stage = new Stage(name, voxels, current.get());
+        if (stage.image != null)
+            active.add(stage);
+        return stage;
+    }
+
+
+    /**
+     * End current image and write its metrics
+     * @param outDir
+     * @throws java.io.IOException
+     */
+    public void endImage(String outDir) throws IOException {
+        ImageRecord record = current.get();
+        if (record == null)
+            return;
+        current.remove();
+        record.detach();
+        // stages left open by an error
+        active.removeIf(stage -> stage.image == record);
+        Stage total = record.total;
+        total.close();
+        for (Stage stage : record.stages)
+            total.peakHeap.accumulateAndGet(stage.peakHeap.get(), Math::max);
+        imagesDone.incrementAndGet();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outDir + record.name + "_metrics.csv", false))) {
+            out.write(HEADER + "\n");
+            for (Stage stage : record.stages)
+                out.write(stage.csv() + "\n");
+            out.write(total.csv() + "\n");
+        }
+    }
+
+
+    private Map<String, double[]> stageTimes() {
+        Map<String, List<Double>> times = new LinkedHashMap<>();
+        for (Stage stage : done)
+            times.computeIfAbsent(stage.name, k -> new ArrayList<>()).add(stage.wall/1e6);
+        Map<String, double[]> sorted = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Double>> e : times.entrySet()) {
+            double[] t = e.getValue().stream().mapToDouble(Double::doubleValue).toArray();
+            Arrays.sort(t);
+            sorted.put(e.getKey(), t);
+        }
+        return sorted;
+    }
+
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int)Math.ceil(p/100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length-1, index))];
+    }
+
+
+    /**
+     * Write batch percentiles of each stage
+     * @param outDir
+     * @throws java.io.IOException
+     */
+    public void writeSummary(String outDir) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outDir + "metrics_summary.csv", false))) {
+            out.write("stage,count,p50_ms,p90_ms,p99_ms,max_ms,total_ms\n");
+            for (Map.Entry<String, double[]> e : stageTimes().entrySet()) {
+                double[] t = e.getValue();
+                String line = String.format("%s,%d,%.0f,%.0f,%.0f,%.0f,%.0f", e.getKey(), t.length, percentile(t, 50), percentile(t, 90),
+                        percentile(t, 99), t[t.length-1], Arrays.stream(t).sum());
+                out.write(line + "\n");
+                System.out.println(line);
+            }
+        }
+    }
+
+
+    @Override
+    public int getImagesDone() {
+        return imagesDone.get();
+    }
+
+
+    @Override
+    public String[] getActiveStages() {
+        List<String> names = new ArrayList<>();
+        for (Stage stage : active)
+            names.add(stage.image.name + " : " + stage.name);
+        Collections.sort(names);
+        return names.toArray(new String[0]);
+    }
+
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> e : stageTimes().entrySet())
+            means.put(e.getKey(), Arrays.stream(e.getValue()).average().orElse(0));
+        return means;
+    }
+
+
+    @Override
+    public Map<String, Double> getStageP90Millis() {
+        Map<String, Double> p90 = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> e : stageTimes().entrySet())
+            p90.put(e.getKey(), percentile(e.getValue(), 90));
+        return p90;
+    }
+
+
+    @Override
+    public double getPeakHeapMB() {
+        return batchPeakHeap.get()/MB;
+    }
+}
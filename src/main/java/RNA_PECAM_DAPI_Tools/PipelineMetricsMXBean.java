@@ -0,0 +1,21 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.util.Map;
+
+
+/**
+ * Live view of the batch in JConsole / VisualVM
+ * @author phm
+ */
+public interface PipelineMetricsMXBean {
+
+    int getImagesDone();
+
+    String[] getActiveStages();
+
+    Map<String, Double> getStageMeanMillis();
+
+    Map<String, Double> getStageP90Millis();
+
+    double getPeakHeapMB();
+}
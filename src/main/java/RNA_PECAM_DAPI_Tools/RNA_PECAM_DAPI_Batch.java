@@ -0,0 +1,67 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ * Headless entry point for batch jobs on compute nodes
+ * java -Djava.awt.headless=true -cp "Fiji.app/jars/*:Fiji.app/plugins/*" RNA_PECAM_DAPI_Tools.RNA_PECAM_DAPI_Batch config.properties [imagesDir]
+ * config keys are read by Tools.config, plus images.dir, images.ext (czi) and results.dir (imagesDir/Results)
+ * with batch.shared=true several nodes can run on the same folder, --merge as last argument
+ * only merges the nodes results into results.xls
+ * exit code 0 when done, 1 on error, 2 on bad arguments
+ * @author phm
+ */
+public class RNA_PECAM_DAPI_Batch {
+
+    public static void main(String[] args) {
+        boolean mergeOnly = args.length > 0 && args[args.length-1].equals("--merge");
+        if (mergeOnly)
+            args = Arrays.copyOf(args, args.length-1);
+        if (args.length < 1) {
+            System.err.println("Usage : RNA_PECAM_DAPI_Batch config.properties [imagesDir] [--merge]");
+            System.exit(2);
+        }
+        System.setProperty("java.awt.headless", "true");
+        try {
+            Properties props = new Properties();
+            try (Reader in = new InputStreamReader(new FileInputStream(args[0]), StandardCharsets.UTF_8)) {
+                props.load(in);
+            }
+            String imageDir = (args.length > 1) ? args[1] : props.getProperty("images.dir");
+            if (imageDir == null) {
+                System.err.println("No images directory, give it as argument or images.dir");
+                System.exit(2);
+            }
+            imageDir = new File(imageDir).getAbsolutePath() + File.separator;
+            String outDirResults = props.getProperty("results.dir", imageDir + "Results");
+            outDirResults = new File(outDirResults).getAbsolutePath() + File.separator;
+
+            Tools tools = new Tools();
+            ArrayList<String> imageFiles = tools.findImages(imageDir, props.getProperty("images.ext", "czi").trim());
+            if (imageFiles == null || imageFiles.isEmpty()) {
+                System.err.println("No image found in "+imageDir);
+                System.exit(1);
+            }
+            String[] channels = BatchAnalysis.readChannels(tools, imageFiles.get(0));
+            String[] chs = tools.config(props, channels);
+            BatchAnalysis batch = new BatchAnalysis(tools, imageDir, outDirResults, channels, chs);
+            if (mergeOnly)
+                batch.merge(imageFiles);
+            else
+                batch.run(imageFiles);
+            System.out.println("Process done");
+            System.exit(0);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
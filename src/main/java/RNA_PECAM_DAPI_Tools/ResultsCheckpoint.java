@@ -0,0 +1,190 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Per image results written atomically, so an interrupted batch can resume
+ * - Results/images/<image>.xls : rows of the image
+ * - Results/images/<image>_foci.xls : one row per focus
+ * - Results/images/<image>.manifest : image and roi size/mtime, parameters hash, rows written last
+ * an image is complete when its manifest matches the image, the roi file, the parameters
+ * and its _Objects.tif exists, results.xls and foci.xls are merged from the fragments in image order
+ * @author phm
+ */
+public class ResultsCheckpoint {
+
+    private final File outDir;
+    private final File dir;
+    private final String paramsHash;
+
+
+    /**
+     * @param outDirResults
+     * @param paramsHash hash of all parameters changing the results
+     */
+    public ResultsCheckpoint(String outDirResults, String paramsHash) {
+        this.outDir = new File(outDirResults);
+        this.dir = new File(outDirResults, "images");
+        this.paramsHash = paramsHash;
+        dir.mkdirs();
+    }
+
+
+    private File fragment(String imageFile) {
+        return new File(dir, FilenameUtils.getBaseName(imageFile)+".xls");
+    }
+
+
+    private File fociFragment(String imageFile) {
+        return new File(dir, FilenameUtils.getBaseName(imageFile)+"_foci.xls");
+    }
+
+
+    private File manifest(String imageFile) {
+        return new File(dir, FilenameUtils.getBaseName(imageFile)+".manifest");
+    }
+
+
+    private File objectsImage(String imageFile) {
+        return new File(outDir, FilenameUtils.getBaseName(imageFile)+"_Objects.tif");
+    }
+
+
+    /**
+     * Roi file of an image, null if none
+     */
+    private static File roiFile(String imageFile) {
+        String root = FilenameUtils.getFullPath(imageFile) + FilenameUtils.getBaseName(imageFile);
+        for (String ext : new String[] {".zip", ".roi"}) {
+            File roi = new File(root+ext);
+            if (roi.exists())
+                return(roi);
+        }
+        return(null);
+    }
+
+
+    private Properties describe(String imageFile) {
+        Properties props = new Properties();
+        File image = new File(imageFile);
+        props.setProperty("image.size", String.valueOf(image.length()));
+        props.setProperty("image.mtime", String.valueOf(image.lastModified()));
+        File roi = roiFile(imageFile);
+        props.setProperty("roi.file", (roi == null) ? "none" : roi.getName());
+        props.setProperty("roi.size", (roi == null) ? "0" : String.valueOf(roi.length()));
+        props.setProperty("roi.mtime", (roi == null) ? "0" : String.valueOf(roi.lastModified()));
+        props.setProperty("params", paramsHash);
+        return(props);
+    }
+
+
+    /**
+     * Image already analyzed with the same inputs and parameters
+     * @param imageFile
+     * @return
+     */
+    public boolean isComplete(String imageFile) {
+        File manifest = manifest(imageFile);
+        if (!manifest.exists())
+            return(false);
+        Properties saved = new Properties();
+        try (InputStream in = Files.newInputStream(manifest.toPath())) {
+            saved.load(in);
+        } catch (IOException e) {
+            return(false);
+        }
+        Properties current = describe(imageFile);
+        for (String key : current.stringPropertyNames())
+            if (!current.getProperty(key).equals(saved.getProperty(key)))
+                return(false);
+        boolean hasObjects = Boolean.parseBoolean(saved.getProperty("objects"));
+        return(fragment(imageFile).exists() && fociFragment(imageFile).exists() && (!hasObjects || objectsImage(imageFile).exists()));
+    }
+
+
+    private static void moveAtomic(Path tmp, File target) throws IOException {
+        Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /**
+     * Save results of an image, manifest last
+     * @param imageFile
+     * @param results null if the image was skipped
+     * @throws java.io.IOException
+     */
+    public void save(String imageFile, NucleiResults results) throws IOException {
+        File fragment = fragment(imageFile);
+        Path tmp = Files.createTempFile(dir.toPath(), fragment.getName(), ".part");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            if (results != null)
+                results.write(out);
+        }
+        moveAtomic(tmp, fragment);
+        File fociFragment = fociFragment(imageFile);
+        tmp = Files.createTempFile(dir.toPath(), fociFragment.getName(), ".part");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            if (results != null)
+                results.writeFoci(out);
+        }
+        moveAtomic(tmp, fociFragment);
+
+        Properties props = describe(imageFile);
+        props.setProperty("rows", String.valueOf((results == null) ? 0 : results.size));
+        props.setProperty("objects", String.valueOf(results != null));
+        File manifest = manifest(imageFile);
+        tmp = Files.createTempFile(dir.toPath(), manifest.getName(), ".part");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, imageFile);
+        }
+        moveAtomic(tmp, manifest);
+    }
+
+
+    /**
+     * Write results.xls and foci.xls from the complete images, in image order
+     * @param imageFiles
+     * @param header
+     * @param fociHeader
+     * @return number of images not complete
+     * @throws java.io.IOException
+     */
+    public int merge(List<String> imageFiles, String header, String fociHeader) throws IOException {
+        List<String> complete = new ArrayList<>();
+        for (String f : imageFiles)
+            if (isComplete(f))
+                complete.add(f);
+        mergeFragments(complete, header, "results.xls", false);
+        mergeFragments(complete, fociHeader, "foci.xls", true);
+        return(imageFiles.size() - complete.size());
+    }
+
+
+    private void mergeFragments(List<String> imageFiles, String header, String name, boolean foci) throws IOException {
+        Path tmp = Files.createTempFile(outDir.toPath(), name, ".part");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(header);
+            for (String f : imageFiles) {
+                File fragment = foci ? fociFragment(f) : fragment(f);
+                for (String row : Files.readAllLines(fragment.toPath(), StandardCharsets.UTF_8)) {
+                    out.write(row);
+                    out.write('\n');
+                }
+            }
+        }
+        moveAtomic(tmp, new File(outDir, name));
+    }
+}
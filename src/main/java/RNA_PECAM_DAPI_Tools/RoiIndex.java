@@ -0,0 +1,89 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+
+/**
+ * Whether a pixel is inside a roi, rois are extruded through z so only x, y are tested
+ * a grid over the rois bounding boxes gives the candidate rois of a cell,
+ * candidates are checked with their bounding box then with Roi.contains
+ * @author phm
+ */
+public class RoiIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private final Roi[] rois;
+    private final Rectangle[] bounds;
+    private int x0, y0, cellSize, nx, ny;
+    // roi indexes of each cell
+    private int[][] cells;
+
+
+    public RoiIndex(Roi[] rois) {
+        this.rois = rois;
+        bounds = new Rectangle[rois.length];
+        if (rois.length == 0)
+            return;
+        int xmin = Integer.MAX_VALUE, ymin = Integer.MAX_VALUE, xmax = Integer.MIN_VALUE, ymax = Integer.MIN_VALUE;
+        for (int r = 0; r < rois.length; r++) {
+            bounds[r] = rois[r].getBounds();
+            xmin = Math.min(xmin, bounds[r].x);
+            ymin = Math.min(ymin, bounds[r].y);
+            xmax = Math.max(xmax, bounds[r].x + bounds[r].width);
+            ymax = Math.max(ymax, bounds[r].y + bounds[r].height);
+        }
+        // about 64 cells along the longest side
+        x0 = xmin;
+        y0 = ymin;
+        cellSize = Math.max(16, (Math.max(xmax - xmin, ymax - ymin) + 63) / 64);
+        nx = (xmax - xmin) / cellSize + 1;
+        ny = (ymax - ymin) / cellSize + 1;
+        int[] count = new int[nx*ny];
+        for (Rectangle b : bounds)
+            forCells(b, c -> count[c]++);
+        cells = new int[nx*ny][];
+        for (int c = 0; c < cells.length; c++)
+            cells[c] = (count[c] == 0) ? NONE : new int[count[c]];
+        Arrays.fill(count, 0);
+        for (int r = 0; r < rois.length; r++) {
+            int roi = r;
+            forCells(bounds[r], c -> cells[c][count[c]++] = roi);
+        }
+    }
+
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+
+    private void forCells(Rectangle b, CellVisitor visitor) {
+        int cx0 = (b.x - x0) / cellSize, cx1 = (b.x + b.width - 1 - x0) / cellSize;
+        int cy0 = (b.y - y0) / cellSize, cy1 = (b.y + b.height - 1 - y0) / cellSize;
+        for (int cy = cy0; cy <= cy1; cy++)
+            for (int cx = cx0; cx <= cx1; cx++)
+                visitor.visit(cy*nx + cx);
+    }
+
+
+    /**
+     * Pixel inside any roi
+     * @param x
+     * @param y
+     * @return
+     */
+    public boolean contains(int x, int y) {
+        if (cells == null || x < x0 || y < y0)
+            return(false);
+        int cx = (x - x0) / cellSize, cy = (y - y0) / cellSize;
+        if (cx >= nx || cy >= ny)
+            return(false);
+        for (int r : cells[cy*nx + cx])
+            if (bounds[r].contains(x, y) && rois[r].contains(x, y))
+                return(true);
+        return(false);
+    }
+}
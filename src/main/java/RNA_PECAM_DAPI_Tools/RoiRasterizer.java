@@ -0,0 +1,140 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * 2D roi to x runs (y, x0..x1) clipped to the image, extruded through z into an Object3DInt
+ * polygons are scan converted with the ImageJ rule (pixel center inside, even-odd)
+ * other area rois (oval, composite) use the roi mask of their bounding box
+ * @author phm
+ */
+public class RoiRasterizer {
+
+    private RoiRasterizer() {
+    }
+
+
+    private static boolean isPolygon(Roi roi) {
+        int type = roi.getType();
+        return(type == Roi.POLYGON || type == Roi.FREEROI || type == Roi.TRACED_ROI);
+    }
+
+
+    /**
+     * Runs of a roi
+     * @param roi
+     * @param width image width
+     * @param height image height
+     * @return runs as {y, x0, x1}, sorted by y then x
+     */
+    public static int[][] runs(Roi roi, int width, int height) {
+        return(isPolygon(roi) ? polygonRuns(roi.getFloatPolygon(), width, height) : maskRuns(roi, width, height));
+    }
+
+
+    /**
+     * Scanline fill of a polygon, each row is cut at the pixel centers
+     */
+    private static int[][] polygonRuns(FloatPolygon p, int width, int height) {
+        int n = p.npoints;
+        float yMin = Float.MAX_VALUE, yMax = -Float.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            yMin = Math.min(yMin, p.ypoints[i]);
+            yMax = Math.max(yMax, p.ypoints[i]);
+        }
+        int y0 = Math.max(0, (int)Math.ceil(yMin - 0.5));
+        int y1 = Math.min(height - 1, (int)Math.ceil(yMax - 0.5) - 1);
+        int[][] runs = new int[16][];
+        int nRuns = 0;
+        double[] xs = new double[n];
+        for (int y = y0; y <= y1; y++) {
+            double yc = y + 0.5;
+            int nx = 0;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                double ya = p.ypoints[j], yb = p.ypoints[i];
+                // half open edges, horizontal edges never cross
+                if ((ya <= yc && yc < yb) || (yb <= yc && yc < ya))
+                    xs[nx++] = p.xpoints[j] + (yc - ya) * (p.xpoints[i] - p.xpoints[j]) / (yb - ya);
+            }
+            Arrays.sort(xs, 0, nx);
+            for (int k = 0; k + 1 < nx; k += 2) {
+                int xa = Math.max(0, (int)Math.ceil(xs[k] - 0.5));
+                int xb = Math.min(width - 1, (int)Math.ceil(xs[k+1] - 0.5) - 1);
+                if (xa > xb)
+                    continue;
+                if (nRuns == runs.length)
+                    runs = Arrays.copyOf(runs, 2*nRuns);
+                runs[nRuns++] = new int[] {y, xa, xb};
+            }
+        }
+        return(Arrays.copyOf(runs, nRuns));
+    }
+
+
+    /**
+     * Runs of the roi mask, a null mask is the whole bounding rectangle
+     */
+    private static int[][] maskRuns(Roi roi, int width, int height) {
+        Rectangle r = roi.getBounds();
+        ImageProcessor mask = roi.getMask();
+        int[][] runs = new int[16][];
+        int nRuns = 0;
+        for (int j = Math.max(0, -r.y); j < r.height && r.y + j < height; j++) {
+            int i = Math.max(0, -r.x);
+            int iMax = Math.min(r.width, width - r.x);
+            while (i < iMax) {
+                if (mask != null && mask.get(i, j) == 0) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < iMax && (mask == null || mask.get(i, j) != 0))
+                    i++;
+                if (nRuns == runs.length)
+                    runs = Arrays.copyOf(runs, 2*nRuns);
+                runs[nRuns++] = new int[] {r.y + j, r.x + start, r.x + i - 1};
+            }
+        }
+        return(Arrays.copyOf(runs, nRuns));
+    }
+
+
+    /**
+     * Roi extruded through all slices, planes are built in parallel
+     * @param roi
+     * @param width
+     * @param height
+     * @param depth
+     * @param cal
+     * @param label
+     * @return object
+     */
+    public static Object3DInt toObject(Roi roi, int width, int height, int depth, Calibration cal, float label) {
+        int[][] runs = runs(roi, width, height);
+        Object3DPlane[] planes = new Object3DPlane[depth];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            Object3DPlane plane = new Object3DPlane(z);
+            for (int[] run : runs)
+                for (int x = run[1]; x <= run[2]; x++)
+                    plane.addVoxel(new VoxelInt(x, run[0], z, label));
+            planes[z] = plane;
+        });
+        Object3DInt obj = new Object3DInt(label);
+        obj.setVoxelSizeXY(cal.pixelWidth);
+        obj.setVoxelSizeZ(cal.pixelDepth);
+        if (runs.length > 0)
+            for (Object3DPlane plane : planes)
+                obj.addPlane(plane);
+        return(obj);
+    }
+}
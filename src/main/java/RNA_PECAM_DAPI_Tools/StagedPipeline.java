@@ -0,0 +1,144 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Jobs go through a chain of stages, each stage has its own worker threads
+ * - stages are linked by bounded queues, a full queue blocks the stage before it
+ *   so at most queueDepth jobs wait between two stages
+ * - a job failing in a stage is handed to the error handler and dropped
+ * - a stage returning null drops the job
+ * @author phm
+ * @param <J> job state passed from stage to stage
+ */
+public class StagedPipeline<J> {
+
+    public interface StageTask<J> {
+        J process(J job) throws Exception;
+    }
+
+    public interface ErrorHandler<J> {
+        void failed(String stage, J job, Throwable ex);
+    }
+
+    private class Stage {
+        final String name;
+        final int workers;
+        final StageTask<J> task;
+        BlockingQueue<Object> in;
+        BlockingQueue<Object> out;
+        final AtomicInteger running = new AtomicInteger();
+
+        Stage(String name, int workers, StageTask<J> task) {
+            this.name = name;
+            this.workers = Math.max(1, workers);
+            this.task = task;
+        }
+    }
+
+    // end of jobs, passed along the chain
+    private static final Object END = new Object();
+
+    private final int queueDepth;
+    private final ErrorHandler<J> onError;
+    private final List<Stage> stages = new ArrayList<>();
+
+
+    /**
+     * @param queueDepth jobs waiting between two stages
+     * @param onError
+     */
+    public StagedPipeline(int queueDepth, ErrorHandler<J> onError) {
+        this.queueDepth = Math.max(1, queueDepth);
+        this.onError = onError;
+    }
+
+
+    /**
+     * Append a stage
+     * @param name thread names and errors
+     * @param workers
+     * @param task
+     * @return this
+     */
+    public StagedPipeline<J> stage(String name, int workers, StageTask<J> task) {
+        stages.add(new Stage(name, workers, task));
+        return(this);
+    }
+
+
+    /**
+     * Run all jobs through the stages, returns when the last stage is done
+     * @param jobs
+     * @throws java.lang.InterruptedException
+     */
+    public void run(List<J> jobs) throws InterruptedException {
+        if (stages.isEmpty())
+            return;
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueDepth);
+        for (Stage stage : stages) {
+            stage.in = queue;
+            queue = new ArrayBlockingQueue<>(queueDepth);
+            stage.out = queue;
+        }
+        // last stage output is not consumed
+        stages.get(stages.size()-1).out = null;
+
+        List<Thread> threads = new ArrayList<>();
+        for (Stage stage : stages) {
+            stage.running.set(stage.workers);
+            for (int w = 0; w < stage.workers; w++) {
+                String name = "RNA_PECAM_DAPI-"+stage.name+"-"+w;
+                Thread t = new Thread(() -> work(stage), name);
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+        }
+        try {
+            BlockingQueue<Object> first = stages.get(0).in;
+            for (J job : jobs)
+                first.put(job);
+            first.put(END);
+            for (Thread t : threads)
+                t.join();
+        } finally {
+            for (Thread t : threads)
+                t.interrupt();
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void work(Stage stage) {
+        try {
+            while (true) {
+                Object item = stage.in.take();
+                if (item == END) {
+                    // let the other workers of the stage see it, the last one passes it on
+                    stage.in.put(END);
+                    if (stage.running.decrementAndGet() == 0 && stage.out != null)
+                        stage.out.put(END);
+                    return;
+                }
+                J job = (J)item;
+                J next;
+                try {
+                    next = stage.task.process(job);
+                } catch (Exception | Error ex) {
+                    onError.failed(stage.name, job, ex);
+                    continue;
+                }
+                if (next != null && stage.out != null)
+                    stage.out.put(next);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import loci.formats.FormatException;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+
+/**
+ * Foci detection on XY tiles, for channels larger than the heap or the GPU memory
+ * - each tile is read with a halo of the DOG kernel radius, its DOG core and raw core are stored in mapped temp files
+ * - threshold level is computed on the histogram of the whole DOG (as on the full image)
+ * - each tile is labelled on its own as x runs, raw intensities are summed per run,
+ *   objects crossing tile borders are stitched and their runs intensities reduced
+ * tiles keep all z planes, peak memory is bounded by the tile size times the number of threads
+ * @author phm
+ */
+public class TiledFociDetector {
+
+    // mapped chunks are kept under 1 GB
+    private static final long CHUNK_FLOATS = 1L << 28;
+
+    private final Tools tools;
+    private final ChannelReader reader;
+    private final int channel;
+    private final int tileSize;
+    private final int width, height, depth;
+    private final int nTilesX, nTilesY;
+
+
+    public TiledFociDetector(Tools tools, ChannelReader reader, int channel, int tileSize) {
+        this(tools, reader, channel, reader.getWidth(), reader.getHeight(), reader.getDepth(), tileSize);
+    }
+
+
+    /**
+     * Detector without reader, tiles are only labelled from given stacks
+     */
+    TiledFociDetector(int width, int height, int depth, int tileSize) {
+        this(null, null, 0, width, height, depth, tileSize);
+    }
+
+
+    private TiledFociDetector(Tools tools, ChannelReader reader, int channel, int width, int height, int depth, int tileSize) {
+        this.tools = tools;
+        this.reader = reader;
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.tileSize = Math.max(16, tileSize);
+        nTilesX = (width + this.tileSize - 1) / this.tileSize;
+        nTilesY = (height + this.tileSize - 1) / this.tileSize;
+    }
+
+
+    /**
+     * Float image of the whole channel in a mapped file, chunks of whole rows
+     */
+    class MappedStack implements AutoCloseable {
+        final File file;
+        final FileChannel fc;
+        final int rowsPerChunk;
+        final int chunksPerSlice;
+        final FloatBuffer[] chunks;
+
+        MappedStack(String name) throws IOException {
+            file = File.createTempFile("RNA_PECAM_DAPI-"+name, ".raw");
+            file.deleteOnExit();
+            fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            rowsPerChunk = (int)Math.max(1, Math.min(height, CHUNK_FLOATS / width));
+            chunksPerSlice = (height + rowsPerChunk - 1) / rowsPerChunk;
+            chunks = new FloatBuffer[depth * chunksPerSlice];
+            long sliceBytes = 4L * width * height;
+            for (int z = 0; z < depth; z++)
+                for (int c = 0; c < chunksPerSlice; c++) {
+                    int rows = Math.min(rowsPerChunk, height - c*rowsPerChunk);
+                    long pos = z * sliceBytes + 4L * c * rowsPerChunk * width;
+                    chunks[z*chunksPerSlice + c] = fc.map(FileChannel.MapMode.READ_WRITE, pos, 4L * rows * width)
+                            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                }
+        }
+
+        // absolute get/put only, threads write disjoint rows
+        FloatBuffer row(int z, int y) {
+            return(chunks[z*chunksPerSlice + y/rowsPerChunk]);
+        }
+
+        int offset(int y, int x) {
+            return((y % rowsPerChunk) * width + x);
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+
+    /**
+     * Tile core, without halo
+     */
+    private class Tile {
+        final int index, x0, y0, x1, y1;
+        ObjectBuilder runs;
+        double[] runSum;
+        float[] runMax;
+        UnionFind uf;
+        int offset;
+
+        Tile(int index) {
+            this.index = index;
+            x0 = (index % nTilesX) * tileSize;
+            y0 = (index / nTilesX) * tileSize;
+            x1 = Math.min(width, x0 + tileSize) - 1;
+            y1 = Math.min(height, y0 + tileSize) - 1;
+        }
+    }
+
+
+    /**
+     * Detect foci
+     * @param sigma1 DOG small sigma (pixels)
+     * @param sigma2 DOG large sigma (pixels)
+     * @param thMethod AutoThresholder method
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @return foci with volume in [minVol, maxVol], measured with their intensity in the channel
+     * @throws java.io.IOException
+     */
+    public ObjectMeasurements detect(double sigma1, double sigma2, String thMethod, Calibration cal, double minVol, double maxVol) throws IOException {
+        int halo = (int)Math.ceil(3*Math.max(sigma1, sigma2)) + 1;
+        List<Tile> tiles = tiles();
+        System.out.println(tiles.size()+" tiles of "+tileSize+" pixels, halo "+halo);
+
+        try (MappedStack dog = new MappedStack("dog"); MappedStack raw = new MappedStack("raw")) {
+            // DOG of each tile core
+            float[] minMax = tiles.parallelStream().map(tile -> dogTile(tile, dog, raw, halo, sigma1, sigma2))
+                    .reduce((a, b) -> new float[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])}).orElse(new float[]{0, 0});
+
+            // global threshold
+            float min = minMax[0];
+            float binWidth = (minMax[1] - min) / CpuFilters.HISTOGRAM_BINS;
+            float level = Float.MAX_VALUE;
+            if (binWidth > 0) {
+                int[] histogram = IntStream.range(0, depth).parallel().mapToObj(z -> {
+                    int[] h = new int[CpuFilters.HISTOGRAM_BINS];
+                    for (int y = 0; y < height; y++) {
+                        FloatBuffer buf = dog.row(z, y);
+                        int off = dog.offset(y, 0);
+                        for (int x = 0; x < width; x++)
+                            h[Math.min(CpuFilters.HISTOGRAM_BINS-1, (int)((buf.get(off+x) - min) / binWidth))]++;
+                    }
+                    return h;
+                }).reduce(new int[CpuFilters.HISTOGRAM_BINS], (a, b) -> {
+                    int[] h = new int[CpuFilters.HISTOGRAM_BINS];
+                    for (int i = 0; i < h.length; i++)
+                        h[i] = a[i] + b[i];
+                    return h;
+                });
+                level = CpuFilters.levelFromHistogram(histogram, min, binWidth, thMethod);
+            }
+
+            return(label(dog, raw, level, cal, minVol, maxVol));
+        }
+    }
+
+
+    private List<Tile> tiles() {
+        List<Tile> tiles = new ArrayList<>();
+        for (int t = 0; t < nTilesX*nTilesY; t++)
+            tiles.add(new Tile(t));
+        return(tiles);
+    }
+
+
+    /**
+     * Label each tile on its own, then stitch the tiles
+     * @param dog
+     * @param raw
+     * @param level voxels >= level are foreground
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @return foci with volume in [minVol, maxVol], measured in raw
+     */
+    ObjectMeasurements label(MappedStack dog, MappedStack raw, float level, Calibration cal, double minVol, double maxVol) {
+        List<Tile> tiles = tiles();
+        tiles.parallelStream().forEach(tile -> labelTile(tile, dog, raw, level));
+        return(stitch(tiles, cal, minVol, maxVol));
+    }
+
+
+    /**
+     * Read tile with halo, DOG, keep DOG and raw core
+     * @return min, max of the core
+     */
+    private float[] dogTile(Tile tile, MappedStack dog, MappedStack raw, int halo, double sigma1, double sigma2) {
+        int rx0 = Math.max(0, tile.x0 - halo), ry0 = Math.max(0, tile.y0 - halo);
+        int rx1 = Math.min(width-1, tile.x1 + halo), ry1 = Math.min(height-1, tile.y1 + halo);
+        int rw = rx1 - rx0 + 1;
+        ImagePlus region;
+        try {
+            region = reader.openRegion(channel, rx0, ry0, rw, ry1 - ry0 + 1);
+        } catch (FormatException | IOException ex) {
+            throw new UncheckedIOException(new IOException("Can't read tile "+tile.index, ex));
+        }
+        ImageStack rawStack = region.getStack();
+        for (int z = 0; z < depth; z++) {
+            float[] pixels = (float[])rawStack.getProcessor(z+1).convertToFloat().getPixels();
+            for (int y = tile.y0; y <= tile.y1; y++) {
+                FloatBuffer buf = raw.row(z, y);
+                int off = raw.offset(y, 0);
+                int src = (y - ry0) * rw - rx0;
+                for (int x = tile.x0; x <= tile.x1; x++)
+                    buf.put(off + x, pixels[src + x]);
+            }
+        }
+        ImagePlus imgDOG = tools.DOG(region, sigma1, sigma2);
+        tools.closeImages(region);
+        ImageStack stack = imgDOG.getStack();
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int z = 0; z < depth; z++) {
+            float[] pixels = (float[])stack.getProcessor(z+1).convertToFloat().getPixels();
+            for (int y = tile.y0; y <= tile.y1; y++) {
+                FloatBuffer buf = dog.row(z, y);
+                int off = dog.offset(y, 0);
+                int src = (y - ry0) * rw - rx0;
+                for (int x = tile.x0; x <= tile.x1; x++) {
+                    float v = pixels[src + x];
+                    buf.put(off + x, v);
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+            }
+        }
+        tools.closeImages(imgDOG);
+        return new float[]{min, max};
+    }
+
+
+    /**
+     * Foreground runs of the tile core, grouped in 26-connectivity inside the tile, raw sum and max of each run
+     */
+    private void labelTile(Tile tile, MappedStack dog, MappedStack raw, float level) {
+        ObjectBuilder runs = new ObjectBuilder();
+        double[] runSum = new double[1024];
+        float[] runMax = new float[1024];
+        int tileH = tile.y1 - tile.y0 + 1;
+        // first run of each row, row = z*tileH + y
+        int[] rowStart = new int[depth*tileH + 1];
+        for (int z = 0; z < depth; z++) {
+            for (int y = tile.y0; y <= tile.y1; y++) {
+                rowStart[z*tileH + y - tile.y0] = runs.size;
+                FloatBuffer buf = dog.row(z, y);
+                int off = dog.offset(y, 0);
+                int x = tile.x0;
+                while (x <= tile.x1) {
+                    if (buf.get(off + x) < level) {
+                        x++;
+                        continue;
+                    }
+                    int start = x;
+                    while (x <= tile.x1 && buf.get(off + x) >= level)
+                        x++;
+                    int r = runs.add(z, y, start, x - 1);
+                    if (r == runSum.length) {
+                        runSum = Arrays.copyOf(runSum, 2*r);
+                        runMax = Arrays.copyOf(runMax, 2*r);
+                    }
+                    FloatBuffer rawBuf = raw.row(z, y);
+                    double sum = 0;
+                    float max = -Float.MAX_VALUE;
+                    for (int i = off + start; i < off + x; i++) {
+                        float v = rawBuf.get(i);
+                        sum += v;
+                        if (v > max) max = v;
+                    }
+                    runSum[r] = sum;
+                    runMax[r] = max;
+                }
+            }
+        }
+        rowStart[depth*tileH] = runs.size;
+        UnionFind uf = new UnionFind(runs.size);
+        for (int z = 0; z < depth; z++) {
+            runs.unionInSlice(uf, rowStart, tileH, z);
+            if (z > 0)
+                runs.unionWithPreviousSlice(uf, rowStart, tileH, z);
+        }
+        tile.runs = runs;
+        tile.runSum = runSum;
+        tile.runMax = runMax;
+        tile.uf = uf;
+    }
+
+
+    private long borderKey(int tile, int z, int y) {
+        return(((long)tile*depth + z)*height + y);
+    }
+
+
+    /**
+     * All runs in one builder, groups of the tiles joined where runs touch across tile borders
+     * runs intensities are reduced per group
+     */
+    private ObjectMeasurements stitch(List<Tile> tiles, Calibration cal, double minVol, double maxVol) {
+        ObjectBuilder all = new ObjectBuilder();
+        for (Tile tile : tiles) {
+            tile.offset = all.size;
+            for (int r = 0; r < tile.runs.size; r++)
+                all.add(tile.runs.z[r], tile.runs.y[r], tile.runs.x0[r], tile.runs.x1[r]);
+        }
+        double[] runSum = new double[all.size];
+        float[] runMax = new float[all.size];
+        for (Tile tile : tiles) {
+            System.arraycopy(tile.runSum, 0, runSum, tile.offset, tile.runs.size);
+            System.arraycopy(tile.runMax, 0, runMax, tile.offset, tile.runs.size);
+        }
+        UnionFind uf = new UnionFind(all.size);
+        int[] tileOf = new int[all.size];
+        // runs touching a tile border, by tile and image row
+        Map<Long, List<Integer>> border = new HashMap<>();
+        for (Tile tile : tiles) {
+            for (int r = 0; r < tile.runs.size; r++) {
+                int g = tile.offset + r;
+                uf.setParent(g, tile.offset + tile.uf.find(r));
+                tileOf[g] = tile.index;
+                if (all.x0[g] == tile.x0 || all.x1[g] == tile.x1 || all.y[g] == tile.y0 || all.y[g] == tile.y1)
+                    border.computeIfAbsent(borderKey(tile.index, all.z[g], all.y[g]), k -> new ArrayList<>()).add(g);
+            }
+            tile.runs = null;
+            tile.runSum = null;
+            tile.runMax = null;
+            tile.uf = null;
+        }
+        // a border run can only touch border runs of the 8 neighbour tiles, in the 3x3 neighbour rows
+        for (List<Integer> row : border.values()) {
+            for (int g : row) {
+                int tx = tileOf[g] % nTilesX, ty = tileOf[g] / nTilesX;
+                for (int ny = Math.max(0, ty-1); ny <= Math.min(nTilesY-1, ty+1); ny++) {
+                    for (int nx = Math.max(0, tx-1); nx <= Math.min(nTilesX-1, tx+1); nx++) {
+                        int neighbour = ny*nTilesX + nx;
+                        // each pair of tiles is joined once, from the lower index
+                        if (neighbour <= tileOf[g])
+                            continue;
+                        for (int dz = -1; dz <= 1; dz++) {
+                            for (int dy = -1; dy <= 1; dy++) {
+                                int z = all.z[g]+dz, y = all.y[g]+dy;
+                                if (z < 0 || z >= depth || y < 0 || y >= height)
+                                    continue;
+                                List<Integer> other = border.get(borderKey(neighbour, z, y));
+                                if (other == null)
+                                    continue;
+                                for (int h : other)
+                                    if (all.overlap(g, h))
+                                        uf.union(g, h);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        Objects3DIntPopulation pop = all.build(uf, cal, minVol, maxVol);
+        // group sum and max, kept at the group root
+        for (int r = 0; r < all.size; r++) {
+            int g = uf.find(r);
+            if (g == r)
+                continue;
+            runSum[g] += runSum[r];
+            runMax[g] = Math.max(runMax[g], runMax[r]);
+        }
+        int[] roots = all.objectRoots;
+        double[] sum = new double[roots.length];
+        float[] max = new float[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            sum[i] = runSum[roots[i]];
+            max[i] = runMax[roots[i]];
+        }
+        return(new ObjectMeasurements(pop.getObjects3DInt(), sum, max));
+    }
+}
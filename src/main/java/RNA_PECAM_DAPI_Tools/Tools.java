@@ -3,6 +3,7 @@ package RNA_PECAM_DAPI_Tools;
 
 
 
+import RNA_PECAM_DAPI.Cellpose.CellposeMaskCache;
 import RNA_PECAM_DAPI.Cellpose.CellposeSegmentImgPlusAdvanced;
 import RNA_PECAM_DAPI.Cellpose.CellposeTaskSettings;
 import fiji.util.gui.GenericDialogPlus;
@@ -11,36 +12,40 @@ import ij.ImagePlus;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.WaitForUserDialog;
-import ij.io.FileSaver;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
 import ij.measure.Measurements;
-import ij.plugin.Duplicator;
-import ij.plugin.RGBStackMerge;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import java.awt.Color;
 import java.awt.Font;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom.Point3D;
 import mcib3d.geom2.Object3DInt;
 import mcib3d.geom2.Objects3DIntPopulation;
-import mcib3d.geom2.VoxelInt;
-import mcib3d.geom2.measurements.MeasureCentroid;
-import mcib3d.geom2.measurements.MeasureVolume;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
-import mcib3d.image3d.ImageLabeller;
 import org.apache.commons.io.FilenameUtils;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij2.CLIJ2;
 
 
@@ -52,7 +57,16 @@ import net.haesleinhuepf.clij2.CLIJ2;
 
 public class Tools {
     
-    public CLIJ2 clij2 = CLIJ2.getInstance();
+    // Filtering backend, CLIJ2 is only initialised when GPU is used
+    // CPU 16-bit : foci DOG kept in half floats, on the raw channel type
+    public final String[] filterBackends = {"GPU", "CPU", "CPU 16-bit"};
+    public String filterBackend = "GPU";
+    private CLIJ2 clij2;
+    private ClBufferPool clPool;
+    // cleared when CLIJ2 can't start, filterBackend keeps the configured value
+    private volatile boolean gpuAvailable = true;
+    // idle device buffers kept between filters and images
+    public double gpuPoolGB = 2;
     
     // min size for dots
     private double minFoci = 0.05;
@@ -60,18 +74,51 @@ public class Tools {
     private final double minDOGFoci = 1;
     private final double maxDOGFoci = 2;
     private String geneThreshold = "MaxEntropy";
+    // XY tile size for foci detection, 0 = whole image
+    public int fociTileSize = 0;
     
     
      // Cellpose
     public String cellPoseModel = "cyto2";
     public String cellPoseEnvDirPath = (IJ.isWindows()) ? System.getProperty("user.home")+"\\miniconda3\\envs\\CellPose" : "/opt/miniconda3/envs/cellpose";
+    public boolean cellPoseWorker = true;
+    public boolean cellPoseCache = true;
+    public String cellPoseCacheDir = System.getProperty("user.home")+File.separator+".cellpose_masks_cache";
+    public double cellPoseCacheGB = 20;
+    // DAPI is downsampled before Cellpose, nuclei are scaled back by nearest neighbour
+    public double cellPoseScaleXY = 0.5;
+    public double cellPoseScaleZ = 1;
+    // nuclei diameter at full resolution, scaled with cellPoseScaleXY for Cellpose
+    private final int cellPoseDiameter = 20;
+    private CellposeMaskCache maskCache;
     double minNucVol = 20;
     double maxNucVol = Double.MAX_VALUE;
+    // gene channels in results
+    public int nbGenes = 2;
+    
+    // Batch, images go through read -> segmentation -> foci -> write stages
+    // nbWorkers : images in the foci stage at once
+    public int nbWorkers = 1;
+    public int readWorkers = 1;
+    public int segmentWorkers = 1;
+    public int writeWorkers = 1;
+    // images waiting between two stages
+    public int queueDepth = 1;
+    public double maxMemoryGB = Runtime.getRuntime().maxMemory()*0.8/(1024*1024*1024);
+    // several nodes share the images folder, images are claimed with lease files
+    public boolean shareFolder = false;
+    public double leaseTimeoutMin = 10;
+    // peak memory of one image relative to the size of one channel
+    private final int memoryPerChannel = 12;
     
-    public final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     public Calibration cal = new Calibration();    
     public float pixVol = 0;
     
+    // stages timing
+    public final PipelineMetrics metrics = new PipelineMetrics();
+    // objects images are written in background
+    private final ObjectsImageWriter objectsWriter = new ObjectsImageWriter(2);
+    
      /**
      * check  installed modules
      * @return 
@@ -79,11 +126,13 @@ public class Tools {
     public boolean checkInstalledModules() {
         // check install
         ClassLoader loader = IJ.getClassLoader();
-        try {
-            loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
-        } catch (ClassNotFoundException e) {
-            IJ.log("CLIJ not installed, please install from update site");
-            return false;
+        if (filterBackend.equals("GPU")) {
+            try {
+                loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
+            } catch (ClassNotFoundException e) {
+                IJ.log("CLIJ not installed, please install from update site");
+                return false;
+            }
         }
         try {
             loader.loadClass("mcib3d.geom.Object3D");
@@ -124,34 +173,189 @@ public class Tools {
         String[] channelsName = {"Gene1 : ", "Gene2 : ", "DAPI : ", "Vessel : "};
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 20, 0);
-        gd.addImage(icon);
+        gd.addImage(new ImageIcon(this.getClass().getResource("/Orion_icon.png")));
         gd.addMessage("Channels selection", Font.getFont("Monospace"), Color.blue);
         for (int n = 0; n < channelsName.length; n++) {
             gd.addChoice(channelsName[n], channels, channels[0]);
         }
         gd.addMessage("Dots filter", Font.getFont("Monospace"), Color.blue);
+        gd.addChoice("Filtering on : ", filterBackends, filterBackend);
         gd.addNumericField("Min foci volume : ", minFoci, 2, 6, "µm3");
         gd.addNumericField("Max foci volume : ", maxFoci, 2, 6, "µm3");
+        gd.addNumericField("Foci tile size (0 = whole image) : ", fociTileSize, 0, 6, "pixels");
       
         // Calibration
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY pixel size : ", cal.pixelWidth, 3);
         gd.addNumericField("Z pixel size : ", cal.pixelDepth, 3);
+        
+        // Nuclei
+        gd.addMessage("Nuclei detection", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Cellpose XY scale : ", cellPoseScaleXY, 2);
+        gd.addNumericField("Cellpose Z scale : ", cellPoseScaleZ, 2);
+        
+        // Batch
+        gd.addMessage("Batch processing", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Images in parallel (foci) : ", nbWorkers, 0);
+        gd.addNumericField("Images in parallel (Cellpose) : ", segmentWorkers, 0);
+        gd.addNumericField("Images waiting between stages : ", queueDepth, 0);
+        gd.addNumericField("Max memory : ", maxMemoryGB, 1, 6, "GB");
+        gd.addCheckbox("Keep Cellpose loaded between images", cellPoseWorker);
+        gd.addCheckbox("Cache Cellpose nuclei masks", cellPoseCache);
         gd.showDialog();
         String[] ch = new String[channelsName.length];
         for (int i = 0; i < channelsName.length; i++)
             ch[i] = gd.getNextChoice();
+        filterBackend = gd.getNextChoice();
 
         minFoci = gd.getNextNumber();
         maxFoci= gd.getNextNumber();
+        fociTileSize = Math.max(0, (int)gd.getNextNumber());
         cal.pixelWidth = gd.getNextNumber();
         cal.pixelDepth = gd.getNextNumber();        
+        cellPoseScaleXY = checkScale(gd.getNextNumber());
+        cellPoseScaleZ = checkScale(gd.getNextNumber());
+        nbWorkers = Math.max(1, (int)gd.getNextNumber());
+        segmentWorkers = Math.max(1, (int)gd.getNextNumber());
+        queueDepth = Math.max(1, (int)gd.getNextNumber());
+        maxMemoryGB = gd.getNextNumber();
+        cellPoseWorker = gd.getNextBoolean();
+        cellPoseCache = gd.getNextBoolean();
         pixVol = (float) (cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
         if (gd.wasCanceled())
                 ch = null;
         return(ch);
     } 
     
+    /**
+     * Parameters from a config file, without dialog
+     * keys : channel.gene1, channel.gene2, channel.dapi, channel.vessel (name or index),
+     * foci.min, foci.max, foci.tileSize, calibration.xy, calibration.z, filter.backend, filter.gpuPoolGB,
+     * cellpose.model, cellpose.envDir, cellpose.worker, cellpose.cache, cellpose.cacheDir, cellpose.cacheGB,
+     * cellpose.scaleXY, cellpose.scaleZ,
+     * batch.workers, batch.maxMemoryGB, batch.shared, batch.leaseMinutes,
+     * pipeline.readWorkers, pipeline.segmentWorkers, pipeline.writeWorkers, pipeline.queueDepth
+     * channel.gene1, channel.gene2 and channel.dapi are required, channel.vessel defaults to None,
+     * other missing keys keep their default value, calibration defaults to the image metadata
+     * @param props
+     * @param channels channels found in images
+     * @return chosen channels as returned by the dialog
+     */
+    public String[] config(Properties props, String[] channels) {
+        String[] channelsKey = {"channel.gene1", "channel.gene2", "channel.dapi", "channel.vessel"};
+        String[] ch = new String[channelsKey.length];
+        for (int i = 0; i < channelsKey.length; i++) {
+            String value = props.getProperty(channelsKey[i]);
+            if (value == null) {
+                if (i < channelsKey.length-1)
+                    throw new IllegalArgumentException(channelsKey[i]+" missing in config");
+                value = channels[channels.length-1];
+            }
+            value = value.trim();
+            if (Arrays.asList(channels).contains(value))
+                ch[i] = value;
+            else if (value.matches("\\d+") && Integer.parseInt(value) < channels.length)
+                ch[i] = channels[Integer.parseInt(value)];
+            else
+                throw new IllegalArgumentException(channelsKey[i]+" = "+value+" not in channels "+Arrays.toString(channels));
+        }
+        filterBackend = props.getProperty("filter.backend", filterBackend).trim();
+        if (!Arrays.asList(filterBackends).contains(filterBackend))
+            throw new IllegalArgumentException("filter.backend = "+filterBackend+" not in "+Arrays.toString(filterBackends));
+        gpuPoolGB = Double.parseDouble(props.getProperty("filter.gpuPoolGB", String.valueOf(gpuPoolGB)));
+        minFoci = Double.parseDouble(props.getProperty("foci.min", String.valueOf(minFoci)));
+        maxFoci = Double.parseDouble(props.getProperty("foci.max", String.valueOf(maxFoci)));
+        fociTileSize = Math.max(0, Integer.parseInt(props.getProperty("foci.tileSize", String.valueOf(fociTileSize)).trim()));
+        cal.pixelWidth = Double.parseDouble(props.getProperty("calibration.xy", String.valueOf(cal.pixelWidth)));
+        cal.pixelHeight = cal.pixelWidth;
+        cal.pixelDepth = Double.parseDouble(props.getProperty("calibration.z", String.valueOf(cal.pixelDepth)));
+        cellPoseModel = props.getProperty("cellpose.model", cellPoseModel).trim();
+        cellPoseEnvDirPath = props.getProperty("cellpose.envDir", cellPoseEnvDirPath).trim();
+        cellPoseWorker = Boolean.parseBoolean(props.getProperty("cellpose.worker", String.valueOf(cellPoseWorker)).trim());
+        cellPoseCache = Boolean.parseBoolean(props.getProperty("cellpose.cache", String.valueOf(cellPoseCache)).trim());
+        cellPoseCacheDir = props.getProperty("cellpose.cacheDir", cellPoseCacheDir).trim();
+        cellPoseCacheGB = Double.parseDouble(props.getProperty("cellpose.cacheGB", String.valueOf(cellPoseCacheGB)));
+        cellPoseScaleXY = checkScale(Double.parseDouble(props.getProperty("cellpose.scaleXY", String.valueOf(cellPoseScaleXY))));
+        cellPoseScaleZ = checkScale(Double.parseDouble(props.getProperty("cellpose.scaleZ", String.valueOf(cellPoseScaleZ))));
+        nbWorkers = Math.max(1, Integer.parseInt(props.getProperty("batch.workers", String.valueOf(nbWorkers)).trim()));
+        maxMemoryGB = Double.parseDouble(props.getProperty("batch.maxMemoryGB", String.valueOf(maxMemoryGB)));
+        readWorkers = Math.max(1, Integer.parseInt(props.getProperty("pipeline.readWorkers", String.valueOf(readWorkers)).trim()));
+        segmentWorkers = Math.max(1, Integer.parseInt(props.getProperty("pipeline.segmentWorkers", String.valueOf(segmentWorkers)).trim()));
+        writeWorkers = Math.max(1, Integer.parseInt(props.getProperty("pipeline.writeWorkers", String.valueOf(writeWorkers)).trim()));
+        queueDepth = Math.max(1, Integer.parseInt(props.getProperty("pipeline.queueDepth", String.valueOf(queueDepth)).trim()));
+        shareFolder = Boolean.parseBoolean(props.getProperty("batch.shared", String.valueOf(shareFolder)).trim());
+        leaseTimeoutMin = Double.parseDouble(props.getProperty("batch.leaseMinutes", String.valueOf(leaseTimeoutMin)));
+        pixVol = (float) (cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
+        return(ch);
+    }
+    
+    
+    /**
+     * Cellpose scale must be in ]0, 1]
+     * @param scale
+     * @return scale
+     */
+    private double checkScale(double scale) {
+        if (!(scale > 0 && scale <= 1))
+            throw new IllegalArgumentException("Cellpose scale "+scale+" not in ]0, 1]");
+        return(scale);
+    }
+    
+    
+    /**
+     * Hash of all parameters changing the results and of the results columns, to know if an image must be analyzed again
+     * @param chs chosen channels
+     * @return hex SHA-256
+     */
+    public String parametersHash(String[] chs) {
+        String params = String.join(",", chs)+";"+filterBackend+";"+minFoci+";"+maxFoci+";"+minDOGFoci+";"+maxDOGFoci+";"
+                +geneThreshold+";"+cal.pixelWidth+";"+cal.pixelHeight+";"+cal.pixelDepth+";"+cellPoseModel+";"+cellPoseScaleXY+";"+cellPoseScaleZ+";"
+                +minNucVol+";"+maxNucVol+";"+nbGenes+";"+NucleiResults.header(nbGenes)+NucleiResults.fociHeader();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(params.getBytes(StandardCharsets.UTF_8)))
+                sb.append(String.format("%02x", b));
+            return(sb.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    
+    /**
+     * Read rois of a .roi or .zip file, without RoiManager
+     * @param roiFile
+     * @return rois
+     * @throws java.io.IOException
+     */
+    public Roi[] loadRois(String roiFile) throws IOException {
+        ArrayList<Roi> rois = new ArrayList<>();
+        if (roiFile.endsWith(".zip")) {
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(roiFile))) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.getName().endsWith(".roi"))
+                        continue;
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = zip.read(buffer)) > 0)
+                        bytes.write(buffer, 0, n);
+                    Roi roi = new RoiDecoder(bytes.toByteArray(), entry.getName()).getRoi();
+                    if (roi != null)
+                        rois.add(roi);
+                }
+            }
+        }
+        else {
+            Roi roi = new RoiDecoder(roiFile).getRoi();
+            if (roi != null)
+                rois.add(roi);
+        }
+        return(rois.toArray(new Roi[0]));
+    }
+    
+    
     /**
      * Find channels name
      * @throws loci.common.services.DependencyException
@@ -218,6 +422,33 @@ public class Tools {
     }
     
     
+    /**
+     * Estimate peak memory needed to analyze one image
+     * @param imageFile
+     * @return memory in bytes
+     */
+    public long estimateImageMemory(String imageFile) {
+        try (ImageProcessorReader reader = new ImageProcessorReader()) {
+            reader.setId(imageFile);
+            long channelBytes = (long)reader.getSizeX() * reader.getSizeY() * reader.getSizeZ() * FormatTools.getBytesPerPixel(reader.getPixelType());
+            return(channelBytes * memoryPerChannel);
+        } catch (FormatException | IOException ex) {
+            System.out.println("Can't estimate memory for "+imageFile+" : "+ex.getMessage());
+            return(0);
+        }
+    }
+    
+    
+    /**
+     * Number of voxels of image
+     * @param img
+     * @return voxels
+     */
+    public static long voxels(ImagePlus img) {
+        return((long)img.getWidth() * img.getHeight() * img.getNSlices());
+    }
+    
+    
     /**
      *
      * @param img
@@ -229,83 +460,220 @@ public class Tools {
     
     
     
+    /**
+     * Check if filters run with CLIJ2
+     * CLIJ2 is initialised on first use, filters fall back to CPU if no OpenCL device is found
+     * @return true if GPU backend
+     */
+    private synchronized boolean useGpu() {
+        if (!filterBackend.equals("GPU") || !gpuAvailable)
+            return(false);
+        if (clij2 == null) {
+            try {
+                clij2 = CLIJ2.getInstance();
+                clPool = new ClBufferPool(clij2, (long)(gpuPoolGB*1024*1024*1024));
+                System.out.println("CLIJ2 running on "+clij2.getGPUName());
+            } catch (RuntimeException | LinkageError e) {
+                IJ.log("No OpenCL device available ("+e.getMessage()+"), filters will run on CPU");
+                gpuAvailable = false;
+                return(false);
+            }
+        }
+        return(true);
+    }
+    
+    
+    /**
+     * Free device buffers kept between images
+     */
+    public synchronized void releaseGpuBuffers() {
+        if (clPool != null) {
+            synchronized (clij2) {
+                clPool.clear();
+            }
+        }
+    }
+    
+    
      /**
      * Difference of Gaussians 
-     * Using CLIJ2
+     * Using CLIJ2 or CPU
      * @param img
      * @param size1
      * @param size2
      * @return imgGauss
      */ 
     public ImagePlus DOG(ImagePlus img, double size1, double size2) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
-        clij2.release(imgCL);
-        ImagePlus imgDOG = clij2.pull(imgCLDOG);
-        clij2.release(imgCLDOG);
-        return(imgDOG);
+        if (!useGpu())
+            return(CpuFilters.DOG(img, size1, size2));
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clPool.push(img);
+            ClearCLBuffer imgCLDOG = null;
+            try {
+                imgCLDOG = clPool.acquire(imgCL.getDimensions(), NativeTypeEnum.Float);
+                clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
+                return(clij2.pull(imgCLDOG));
+            } finally {
+                clPool.release(imgCL);
+                if (imgCLDOG != null)
+                    clPool.release(imgCLDOG);
+            }
+        }
     }
     
      /**
-     * Median filter using CLIJ2
+     * Median filter using CLIJ2 or CPU
      * @param img
      * @param sizeXY
      * @param sizeZ
      * @return 
      */ 
     public ImagePlus median_filter(ImagePlus img, double sizeXY) {
-       ClearCLBuffer imgCL = clij2.push(img); 
-       ClearCLBuffer imgCLMed = clij2.create(imgCL);
-       clij2.median3DBox(imgCL, imgCLMed, sizeXY, sizeXY, sizeXY);
-       clij2.release(imgCL);
-       ImagePlus imgMed = clij2.pull(imgCLMed);
-       clij2.release(imgCLMed);
-       return(imgMed);
+        if (!useGpu())
+            return(CpuFilters.median3DBox(img, sizeXY));
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clPool.push(img);
+            ClearCLBuffer imgCLMed = null;
+            try {
+                imgCLMed = clPool.acquire(imgCL.getDimensions(), imgCL.getNativeType());
+                clij2.median3DBox(imgCL, imgCLMed, sizeXY, sizeXY, sizeXY);
+                return(clij2.pull(imgCLMed));
+            } finally {
+                clPool.release(imgCL);
+                if (imgCLMed != null)
+                    clPool.release(imgCLMed);
+            }
+        }
     } 
     
     /**
      * Threshold 
-     * USING CLIJ2
+     * USING CLIJ2 or CPU
      * @param img
      * @param thMed
      * @return 
      */
     public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        clij2.release(imgCL);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCLBin);
-        return(imgBin);
+        if (!useGpu())
+            return(CpuFilters.threshold(img, thMed));
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clPool.push(img);
+            ClearCLBuffer imgCLBin = null;
+            try {
+                imgCLBin = clPool.acquire(imgCL.getDimensions(), NativeTypeEnum.UnsignedByte);
+                clij2.automaticThreshold(imgCL, imgCLBin, thMed);
+                return(clij2.pull(imgCLBin));
+            } finally {
+                clPool.release(imgCL);
+                if (imgCLBin != null)
+                    clPool.release(imgCLBin);
+            }
+        }
+    }
+    
+    
+    /**
+     * Difference of Gaussians followed by threshold
+     * on GPU the raw image is uploaded once, the DOG stays on the device
+     * and only the binary mask is downloaded
+     * @param img
+     * @param size1
+     * @param size2
+     * @param thMethod
+     * @return binary image
+     */
+    public ImagePlus dogThreshold(ImagePlus img, double size1, double size2, String thMethod) {
+        if (!useGpu()) {
+            ImagePlus imgDOG = CpuFilters.DOG(img, size1, size2);
+            ImagePlus imgBin = CpuFilters.threshold(imgDOG, thMethod);
+            closeImages(imgDOG);
+            return(imgBin);
+        }
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clPool.push(img);
+            ClearCLBuffer imgCLDOG = null, imgCLBin = null;
+            try {
+                imgCLDOG = clPool.acquire(imgCL.getDimensions(), NativeTypeEnum.Float);
+                clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
+                imgCLBin = clPool.acquire(imgCL.getDimensions(), NativeTypeEnum.UnsignedByte);
+                clij2.automaticThreshold(imgCLDOG, imgCLBin, thMethod);
+                return(clij2.pull(imgCLBin));
+            } finally {
+                clPool.release(imgCL);
+                if (imgCLDOG != null)
+                    clPool.release(imgCLDOG);
+                if (imgCLBin != null)
+                    clPool.release(imgCLBin);
+            }
+        }
     }
     
+    /**
+     * DOG and threshold to a bit mask, no binary stack is kept
+     * with CPU 16-bit the DOG is never a float stack
+     * @param img
+     * @param size1
+     * @param size2
+     * @param thMethod
+     * @return mask
+     */
+    public BitMask dogThresholdMask(ImagePlus img, double size1, double size2, String thMethod) {
+        if (filterBackend.equals("CPU 16-bit"))
+            return(CpuFilters.dogThresholdMaskHalf(img, size1, size2, thMethod));
+        if (!useGpu()) {
+            ImagePlus imgDOG = CpuFilters.DOG(img, size1, size2);
+            BitMask mask = CpuFilters.thresholdMask(imgDOG, thMethod);
+            closeImages(imgDOG);
+            return(mask);
+        }
+        ImagePlus imgBin = dogThreshold(img, size1, size2, thMethod);
+        BitMask mask = BitMask.fromImage(imgBin);
+        closeImages(imgBin);
+        return(mask);
+    }
+    
+    
     /**
      * return objects population in an binary image
      * @param img
      * @return pop
      */
     public Objects3DIntPopulation getPopFromImage(ImagePlus img, Calibration cal) {
-        // label binary images first
-        ImageLabeller labeller = new ImageLabeller();
-        ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
-        labels.setCalibration(cal);
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
-        return pop;
+        return(getPopFromImage(img, cal, 0, Double.MAX_VALUE));
+    }
+    
+    
+    /**
+     * return objects population in an binary image, objects out of the volume range are never built
+     * @param img
+     * @param cal
+     * @param minVol
+     * @param maxVol
+     * @return pop
+     */
+    public Objects3DIntPopulation getPopFromImage(ImagePlus img, Calibration cal, double minVol, double maxVol) {
+        return(ParallelLabeller.label(img, cal, minVol, maxVol));
     }
     
     
     
      /**
      * Remove object with size < min and size > max
+     * volumes are measured once for all objects
      * @param pop
      * @param min
      * @param max
+     * @return measurements of the remaining objects
      */
-    public void popFilterSize(Objects3DIntPopulation pop, double min, double max) {
-        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
+    public ObjectMeasurements popFilterSize(Objects3DIntPopulation pop, double min, double max) {
+        ObjectMeasurements measures = new ObjectMeasurements(pop);
+        int[] rows = measures.rowsInVolumeRange(min, max);
+        List<Object3DInt> objects = pop.getObjects3DInt();
+        objects.clear();
+        for (int row : rows)
+            objects.add(measures.objects.get(row));
         pop.resetLabels();
+        return(measures.subset(rows));
     }
     
      /**
@@ -328,24 +696,41 @@ public class Tools {
     
     /**
      * Return Object3D from roi
+     * each roi is rasterized to runs and extruded through z, rois are done in parallel
+     * @param img image giving dimensions and calibration
+     * @param rois
+     * @return roisPop
      */
     public Objects3DIntPopulation getObjectsFromRoi(ImagePlus img, Roi[] rois) {
-        ImagePlus imgDup = new Duplicator().run(img);
-        Objects3DIntPopulation roisPop = new Objects3DIntPopulation();
-        for (Roi roi : rois) {
-            imgDup.setRoi(roi);
-            IJ.run(imgDup, "8-bit","");
-            IJ.setBackgroundColor(0, 0, 0);
-            IJ.run(imgDup, "Clear Outside", "stack");
-            IJ.setForegroundColor(255, 255, 255);
-            IJ.run(imgDup, "Fill", "stack");
-            imgDup.deleteRoi();
-            ImageHandler imh = ImageHandler.wrap(imgDup);
-            Object3DInt obj = new Object3DInt(imh, 255);
-            roisPop.addObject(obj);
+        try (PipelineMetrics.Stage stage = metrics.stage("roi objects", voxels(img)*rois.length)) {
+            Calibration imgCal = img.getCalibration();
+            Object3DInt[] objects = new Object3DInt[rois.length];
+            IntStream.range(0, rois.length).parallel().forEach(i -> 
+                    objects[i] = RoiRasterizer.toObject(rois[i], img.getWidth(), img.getHeight(), img.getNSlices(), imgCal, 255));
+            Objects3DIntPopulation roisPop = new Objects3DIntPopulation();
+            for (Object3DInt obj : objects)
+                roisPop.addObject(obj);
+            return(roisPop);
         }
-        closeImages(imgDup);
-        return(roisPop);  
+    }
+    
+    
+    /**
+     * Cellpose masks cache, created on first use
+     */
+    private synchronized CellposeMaskCache getMaskCache() {
+        if (maskCache == null)
+            maskCache = new CellposeMaskCache(new File(cellPoseCacheDir), (long)(cellPoseCacheGB*1024*1024*1024));
+        return(maskCache);
+    }
+    
+    
+    /**
+     * Print Cellpose cache hits and misses of the batch
+     */
+    public synchronized void cellposeCacheReport() {
+        if (maskCache != null)
+            System.out.println(maskCache.report());
     }
     
     
@@ -354,88 +739,125 @@ public class Tools {
      * - apply CellPose in 2D slice 
      * 
      * @param img
-     * @return 
+     * @param roiIndex vessel rois, nucleus is vessel+ if its centroid is in any roi
+     * @return nuclei and their results table
      * @throws java.io.IOException
      */
-    public ArrayList<Nucleus> cellposeDetection(ImagePlus img, Objects3DIntPopulation roisPop) throws IOException{
+    public NucleiResults cellposeDetection(ImagePlus img, RoiIndex roiIndex) throws IOException{
         ArrayList<Nucleus> nuclei = new ArrayList<>();
-        ImagePlus imgResized = img.resize((int)(img.getWidth()*0.5), (int)(img.getHeight()*0.5), 1, "none");
-        ImagePlus imgMed = median_filter(imgResized, 1);
-        closeImages(imgResized);
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getNSlices();
+        ImagePlus imgMed;
+        try (PipelineMetrics.Stage stage = metrics.stage("nuclei preprocessing", voxels(img))) {
+            ImagePlus imgResized = img.resize(Math.max(1, (int)(width*cellPoseScaleXY)), Math.max(1, (int)(height*cellPoseScaleXY)),
+                    Math.max(1, (int)Math.round(depth*cellPoseScaleZ)), "none");
+            imgMed = median_filter(imgResized, 1);
+            closeImages(imgResized);
+        }
         // Define CellPose settings
-        CellposeTaskSettings settings = new CellposeTaskSettings(cellPoseModel, 1, 10, cellPoseEnvDirPath);
+        int diameter = Math.max(1, (int)Math.round(cellPoseDiameter*cellPoseScaleXY));
+        CellposeTaskSettings settings = new CellposeTaskSettings(cellPoseModel, 1, diameter, cellPoseEnvDirPath);
         settings.useGpu(true);
         settings.setStitchThreshold(0.5);
+        settings.useWorker(cellPoseWorker);
        
         // Run CellPose
         CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgMed);
-        ImagePlus imgOut = cellpose.run();
-        imgOut = imgOut.resize(img.getWidth(), img.getHeight(), "none");
-        imgOut.setCalibration(cal);
-        closeImages(imgMed);
-        // Get cells as a population of objects
-        Objects3DIntPopulation nucPop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
-        System.out.println(nucPop.getNbObjects() + " cell detections");
-        popFilterSize(nucPop, minNucVol, maxNucVol);
-        System.out.println(nucPop.getNbObjects() + " cells remaining after size filtering"); 
-        
-        // tag nucleus inside vessel (roi)
-        for (Object3DInt nucObj : nucPop.getObjects3DInt()) {
-            VoxelInt center = new MeasureCentroid(nucObj).getCentroidRoundedAsVoxelInt();
-            Nucleus nucleus = new Nucleus(nucObj);
-            nuclei.add(nucleus);
-            nucleus.params.put("index", (double)nucObj.getLabel());
-            nucleus.params.put("nucVol", new MeasureVolume(nucObj).getVolumeUnit());
-            for (Object3DInt roiObj : roisPop.getObjects3DInt()) {
-                if (roiObj.contains(center)) {
-                    nucleus.params.put("vessel", 1.0);
-                }
-                else
-                    nucleus.params.put("vessel", 0.0);
-                break;
+        if (cellPoseCache)
+            cellpose.setCache(getMaskCache());
+        ImagePlus imgOut;
+        try (PipelineMetrics.Stage stage = metrics.stage("cellpose", voxels(imgMed))) {
+            imgOut = cellpose.run();
+        }
+        try (PipelineMetrics.Stage stage = metrics.stage("nuclei objects", voxels(img))) {
+            closeImages(imgMed);
+            // Get cells as a population of objects, at full resolution
+            Objects3DIntPopulation nucPop = LabelUpscaler.upscale(imgOut, width, height, depth, cal, minNucVol, maxNucVol);
+            System.out.println(nucPop.getNbObjects() + " cells remaining after size filtering"); 
+            ObjectMeasurements nucMeasures = new ObjectMeasurements(nucPop, img);
+
+            for (Object3DInt nucObj : nucMeasures.objects)
+                nuclei.add(new Nucleus(nucObj));
+            NucleiResults results = new NucleiResults(nuclei, nbGenes);
+
+            // tag nucleus inside vessel (roi)
+            for (int n = 0; n < nucMeasures.size; n++) {
+                int[] c = nucMeasures.centroidVoxel(n);
+                results.index[n] = nucMeasures.label[n];
+                results.nucVol[n] = nucMeasures.volume[n];
+                results.nucIntensity[n] = nucMeasures.intensityMean[0][n];
+                results.vessel[n] = roiIndex.contains(c[0], c[1]);
             }
+            closeImages(imgOut);
+            return(results);
         }
-        closeImages(imgOut);
-        return(nuclei);
     } 
     
     /**
      * Find coloc between pop1 and pop2
      * tag nucleus with foci number and foci volume 
-     * @param nuclei
+     * each focus centroid is assigned to its nucleus with one lookup in the nuclei label index
+     * @param results
      * @param fociPop
      * @throws java.io.IOException
      */
-    public Objects3DIntPopulation findColocPop (ArrayList<Nucleus> nuclei, Objects3DIntPopulation fociPop, int gene) throws IOException {
+    public Objects3DIntPopulation findColocPop (NucleiResults results, Objects3DIntPopulation fociPop, int gene) throws IOException {
+        return(findColocPop(results, new ObjectMeasurements(fociPop), gene));
+    }
+    
+    
+    /**
+     * Find coloc between nuclei and already measured foci
+     * foci intensities are summed per nucleus when measured in the gene channel
+     * @param results
+     * @param fociMeasures
+     * @param gene
+     * @throws java.io.IOException
+     */
+    public Objects3DIntPopulation findColocPop (NucleiResults results, ObjectMeasurements fociMeasures, int gene) throws IOException {
+        ArrayList<Nucleus> nuclei = results.nuclei;
+        NucleusLabelIndex nucIndex = new NucleusLabelIndex(nuclei);
+        int[] foci = results.fociGene[gene-1];
+        double[] fociVol = results.fociGeneVol[gene-1];
+        double[] fociInt = results.fociGeneInt[gene-1];
+        boolean measured = fociMeasures.nbChannels > 0;
+        Arrays.fill(foci, 0);
+        Arrays.fill(fociVol, 0);
+        Arrays.fill(fociInt, measured ? 0 : Double.NaN);
+        ArrayList<ArrayList<Integer>> fociInNuc = new ArrayList<>(nuclei.size());
+        for (int n = 0; n < nuclei.size(); n++)
+            fociInNuc.add(new ArrayList<>());
+        
+        for (int f = 0; f < fociMeasures.size; f++) {
+            int[] center = fociMeasures.centroidVoxel(f);
+            int nuc = nucIndex.indexAt(center[0], center[1], center[2]);
+            if (nuc < 0)
+                continue;
+            foci[nuc]++;
+            fociVol[nuc] += fociMeasures.volume[f];
+            if (measured)
+                fociInt[nuc] += fociMeasures.integratedIntensity[0][f];
+            fociInNuc.get(nuc).add(f);
+        }
+        
+        // foci population ordered by nucleus
         Objects3DIntPopulation fociNucPop = new Objects3DIntPopulation();
-        float fociIndex = 0;
-        for (Nucleus nucleus: nuclei) {
-            Object3DInt nucObj = nucleus.nucleus;
-            double foci = 0;
-            double fociVol = 0;
-            for (Object3DInt fociObj : fociPop.getObjects3DInt()) {
-                Point3D center = new MeasureCentroid(fociObj).getCentroidAsPoint();
-                if (nucObj.contains(new VoxelInt(center.getRoundX(), center.getRoundY(), center.getRoundZ(), 255))) {
-                    foci++;
-                    fociVol += new MeasureVolume(fociObj).getVolumeUnit();
-                    Object3DInt fociNuc = fociObj;
-                    fociIndex++;
-                    fociNuc.setLabel(fociIndex);
-                    fociNucPop.addObject(fociNuc);
-                }
-            }
-            switch (gene) {
-                case 1 :
-                    nucleus.params.put("fociGene1", foci);
-                    nucleus.params.put("fociGene1Vol", fociVol);
-                    break;
-                case 2 :
-                    nucleus.params.put("fociGene2", foci);
-                    nucleus.params.put("fociGene2Vol", fociVol);
-                    break;
+        int nbFoci = 0;
+        for (ArrayList<Integer> rows : fociInNuc)
+            nbFoci += rows.size();
+        int[] rows = new int[nbFoci], fociNuc = new int[nbFoci];
+        int fociIndex = 0;
+        for (int n = 0; n < nuclei.size(); n++) {
+            for (int f : fociInNuc.get(n)) {
+                rows[fociIndex] = f;
+                fociNuc[fociIndex] = n;
+                fociIndex++;
+                Object3DInt fociObj = fociMeasures.objects.get(f);
+                fociObj.setLabel(fociIndex);
+                fociNucPop.addObject(fociObj);
             }
         }
         fociNucPop.resetLabels();
+        results.setFoci(gene, fociMeasures.subset(rows), fociNuc);
         return(fociNucPop);
     }
 
@@ -445,21 +867,49 @@ public class Tools {
      * @param imgGene
      * @return genePop
      */
-    public Objects3DIntPopulation findGenesPop(ImagePlus imgGene, ArrayList<Nucleus> nuclei, int gene) throws IOException {
+    public Objects3DIntPopulation findGenesPop(ImagePlus imgGene, NucleiResults results, int gene) throws IOException {
         IJ.showStatus("Finding gene dots ...");
-        ImagePlus imgDup = new Duplicator().run(imgGene);
-        ImagePlus imgDOG = DOG(imgDup, minDOGFoci, maxDOGFoci);
-        closeImages(imgDup);
-        ImagePlus imgBin = threshold(imgDOG, geneThreshold); 
-        closeImages(imgDOG);
-        imgBin.setCalibration(cal);
-        Objects3DIntPopulation genePop = getPopFromImage(imgBin, cal);
-        popFilterSize(genePop, minFoci, maxFoci);
-        System.out.println(genePop.getNbObjects() + " genes"+gene+" found");
-        closeImages(imgBin);
+        long voxels = voxels(imgGene);
+        BitMask geneMask;
+        try (PipelineMetrics.Stage stage = metrics.stage("dog threshold", voxels)) {
+            geneMask = dogThresholdMask(imgGene, minDOGFoci, maxDOGFoci, geneThreshold);
+        }
+        ObjectMeasurements geneMeasures;
+        try (PipelineMetrics.Stage stage = metrics.stage("labelling size filter", voxels)) {
+            Objects3DIntPopulation genePop = ParallelLabeller.label(geneMask, cal, minFoci, maxFoci);
+            // volume, centroid and intensities in the gene channel in one sweep
+            geneMeasures = new ObjectMeasurements(genePop, imgGene);
+        }
+        System.out.println(geneMeasures.size + " genes"+gene+" found");
         // tag nuclei with dots number and volume
-        Objects3DIntPopulation colocPop = findColocPop(nuclei, genePop, gene);
-        return(colocPop);
+        try (PipelineMetrics.Stage stage = metrics.stage("coloc", 0)) {
+            return(findColocPop(results, geneMeasures, gene));
+        }
+    }
+    
+
+    /**
+     * Find genes population tile by tile, the gene channel is never loaded as a whole
+     * @param reader
+     * @param channel
+     * @param results
+     * @param gene
+     * @return genePop
+     * @throws java.io.IOException
+     */
+    public Objects3DIntPopulation findGenesPopTiled(ChannelReader reader, int channel, NucleiResults results, int gene) throws IOException {
+        IJ.showStatus("Finding gene dots ...");
+        long voxels = (long)reader.getWidth()*reader.getHeight()*reader.getDepth();
+        ObjectMeasurements geneMeasures;
+        try (PipelineMetrics.Stage stage = metrics.stage("tiled detection", voxels)) {
+            TiledFociDetector detector = new TiledFociDetector(this, reader, channel, fociTileSize);
+            // intensities are summed per run in the raw tiles
+            geneMeasures = detector.detect(minDOGFoci, maxDOGFoci, geneThreshold, cal, minFoci, maxFoci);
+        }
+        System.out.println(geneMeasures.size + " genes"+gene+" found");
+        try (PipelineMetrics.Stage stage = metrics.stage("coloc", 0)) {
+            return(findColocPop(results, geneMeasures, gene));
+        }
     }
     
 
@@ -471,11 +921,7 @@ public class Tools {
     
     public double findPopVolume (Objects3DIntPopulation dotsPop) {
         IJ.showStatus("Findind object's volume");
-        double sumVol = 0;
-        for(Object3DInt obj : dotsPop.getObjects3DInt()) {
-            sumVol += new MeasureVolume(obj).getVolumeUnit();
-        }
-        return(sumVol);
+        return(new ObjectMeasurements(dotsPop).totalVolume());
     }
     
     
@@ -505,32 +951,48 @@ public class Tools {
      */
     public void saveGenesImage (ArrayList<Nucleus> nuclei, Objects3DIntPopulation gene1Pop, Objects3DIntPopulation gene2Pop, Objects3DIntPopulation roisPop, 
             ImagePlus img, String path) {
+        saveGenesImage(nuclei, gene1Pop, gene2Pop, roisPop, img.getWidth(), img.getHeight(), img.getNSlices(), img.getBitDepth(), path);
+    }
+    
+    
+    /**
+     * save images objects population, image given by its dimensions
+     * @param width
+     * @param height
+     * @param depth
+     * @param bitDepth 8 or 16
+     * @param path
+     */
+    public void saveGenesImage (ArrayList<Nucleus> nuclei, Objects3DIntPopulation gene1Pop, Objects3DIntPopulation gene2Pop, Objects3DIntPopulation roisPop, 
+            int width, int height, int depth, int bitDepth, String path) {
         // red gene1 , green gene2, blue nuclei, grey roi
-        ImageHandler imhDapi = ImageHandler.wrap(img).createSameDimensions();
-        ImageHandler imhGene1 = imhDapi.createSameDimensions();
-        ImageHandler imhGene2 = imhDapi.createSameDimensions();
-        ImageHandler imhRoi = imhDapi.createSameDimensions();
-        
-        // draw nuclei
-        for (Nucleus nuc : nuclei)
-            nuc.nucleus.drawObject(imhDapi, 255);
-        // draw genes population
-        for (Object3DInt ob : gene1Pop.getObjects3DInt())
-            ob.drawObject(imhGene1, 255);
-        for (Object3DInt ob : gene2Pop.getObjects3DInt())
-            ob.drawObject(imhGene2, 255);
-        for (Object3DInt ob : roisPop.getObjects3DInt())
-            ob.drawObject(imhRoi, 32); 
-        ImagePlus[] imgColors = {imhGene1.getImagePlus(), imhGene2.getImagePlus(), imhDapi.getImagePlus(), imhRoi.getImagePlus()};
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, true);
-        imgObjects.setCalibration(cal);
-        // Save images
-        FileSaver ImgObjectsFile = new FileSaver(imgObjects);
-        ImgObjectsFile.saveAsTiff(path);
-        imhGene1.closeImagePlus();
-        imhGene2.closeImagePlus();
-        imhDapi.closeImagePlus();
-        imhRoi.closeImagePlus();
+        try (PipelineMetrics.Stage stage = metrics.stage("queue objects image", (long)width*height*depth*4)) {
+            List<Object3DInt> nucObjects = new ArrayList<>(nuclei.size());
+            for (Nucleus nuc : nuclei)
+                nucObjects.add(nuc.nucleus);
+            List<List<Object3DInt>> channels = Arrays.asList(gene1Pop.getObjects3DInt(), gene2Pop.getObjects3DInt(), 
+                    nucObjects, roisPop.getObjects3DInt());
+            objectsWriter.submit(path, channels, new int[] {255, 255, 255, 32}, width, height, depth, bitDepth, cal.copy());
+        }
+    }
+    
+    
+    /**
+     * Wait for an objects image queued by saveGenesImage
+     * @param path
+     * @throws java.io.IOException
+     */
+    public void awaitObjectsImage(String path) throws IOException {
+        objectsWriter.await(path);
+    }
+    
+    
+    /**
+     * Wait for all queued objects images
+     * @throws java.io.IOException
+     */
+    public void awaitObjectsImages() throws IOException {
+        objectsWriter.awaitAll();
     }
    
 }
@@ -0,0 +1,50 @@
+package RNA_PECAM_DAPI_Tools;
+
+
+/**
+ * Disjoint sets over 0..n-1, the root of a set is its smallest element
+ * @author phm
+ */
+class UnionFind {
+
+    private final int[] parent;
+
+
+    UnionFind(int n) {
+        parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i;
+    }
+
+
+    int size() {
+        return(parent.length);
+    }
+
+
+    int find(int i) {
+        while (parent[i] != i) {
+            // path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return(i);
+    }
+
+
+    void union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra < rb)
+            parent[rb] = ra;
+        else if (rb < ra)
+            parent[ra] = rb;
+    }
+
+
+    /**
+     * Attach i directly to root, used to merge independently built sets
+     */
+    void setParent(int i, int root) {
+        parent[i] = root;
+    }
+}
@@ -0,0 +1,113 @@
+"""
+Long-lived Cellpose worker for RNA_PECAM_DAPI
+
+Reads one JSON job per line on stdin, answers one line per job on stdout:
+  READY          worker started, cellpose imported
+  OK <n>         job done, n images segmented
+  ERROR <msg>    job failed
+A job either segments the raw stacks listed in job["inputs"] into job["outputs"]
+(see RawImageIO.java for the layout), or, without inputs, every .tif of job["dir"]
+into <name>_cp_masks.tif as the cellpose command line does.
+Models are loaded once and kept between jobs.
+Everything else (cellpose and torch logs) goes to stderr.
+"""
+import json
+import os
+import sys
+import traceback
+
+import numpy as np
+
+protocol = sys.stdout
+sys.stdout = sys.stderr
+
+from cellpose import models, io
+
+_models = {}
+
+
+def reply(msg):
+    protocol.write(msg + "\n")
+    protocol.flush()
+
+
+def get_model(name, gpu):
+    key = (name, gpu)
+    if key not in _models:
+        if os.path.exists(name):
+            _models[key] = models.CellposeModel(gpu=gpu, pretrained_model=name)
+        else:
+            _models[key] = models.Cellpose(gpu=gpu, model_type=name)
+    return _models[key]
+
+
+MAGIC = b"CPRAW1\0\0"
+HEADER = 24
+DTYPES = {1: np.uint8, 2: np.uint16, 3: np.float32, 4: np.uint32}
+
+
+def read_raw(path):
+    header = np.fromfile(path, dtype=np.uint8, count=HEADER).tobytes()
+    if header[:8] != MAGIC:
+        raise ValueError(path + " is not a raw exchange file")
+    dtype, depth, height, width = np.frombuffer(header[8:], dtype="<i4")
+    return np.memmap(path, dtype=np.dtype(DTYPES[int(dtype)]).newbyteorder("<"), mode="r",
+                     offset=HEADER, shape=(int(depth), int(height), int(width)))
+
+
+def write_raw(path, labels):
+    labels = np.asarray(labels)
+    if labels.ndim == 2:
+        labels = labels[np.newaxis]
+    code = 2 if labels.max(initial=0) < 65536 else 4
+    header = MAGIC + np.array([code] + list(labels.shape), dtype="<i4").tobytes()
+    with open(path, "wb") as f:
+        f.write(header)
+        labels.astype(np.dtype(DTYPES[code]).newbyteorder("<"), copy=False).tofile(f)
+
+
+def segment(job):
+    model = get_model(job["model"], job["use_gpu"])
+    kwargs = dict(channels=[job["chan"], max(job["chan2"], 0)],
+                  diameter=job["diameter"],
+                  flow_threshold=job["flow_threshold"],
+                  cellprob_threshold=job["cellprob_threshold"],
+                  do_3D=job["do_3D"],
+                  resample=job["resample"])
+    if job["stitch_threshold"] > 0:
+        kwargs["stitch_threshold"] = job["stitch_threshold"]
+    if job.get("inputs"):
+        for src, dst in zip(job["inputs"], job["outputs"]):
+            img = read_raw(src)
+            if img.shape[0] == 1:
+                img = img[0]
+            write_raw(dst, model.eval(np.asarray(img), **kwargs)[0])
+        return len(job["inputs"])
+    n = 0
+    for name in sorted(os.listdir(job["dir"])):
+        if not name.endswith(".tif") or name.endswith("_cp_masks.tif"):
+            continue
+        path = os.path.join(job["dir"], name)
+        masks = model.eval(io.imread(path), **kwargs)[0]
+        io.imsave(os.path.splitext(path)[0] + "_cp_masks.tif", masks)
+        n += 1
+    return n
+
+
+def main():
+    reply("READY")
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        if line == "QUIT":
+            break
+        try:
+            reply("OK %d" % segment(json.loads(line)))
+        except Exception as e:
+            traceback.print_exc()
+            reply("ERROR " + str(e).replace("\n", " "))
+
+
+if __name__ == "__main__":
+    main()
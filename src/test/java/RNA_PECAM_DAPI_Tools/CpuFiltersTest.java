@@ -0,0 +1,125 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.GaussianBlur3D;
+import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * CPU filters against a direct computation or the ImageJ filter doing the same
+ * @author phm
+ */
+public class CpuFiltersTest {
+
+    private static final int WIDTH = 37, HEIGHT = 29, DEPTH = 7;
+
+
+    private static ImagePlus stack(float[][] data) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (float[] slice : data)
+            stack.addSlice(new FloatProcessor(WIDTH, HEIGHT, slice.clone()));
+        return(new ImagePlus("test", stack));
+    }
+
+
+    private static float[][] randomData(Random random, int range) {
+        float[][] data = new float[DEPTH][WIDTH*HEIGHT];
+        for (float[] slice : data)
+            for (int i = 0; i < slice.length; i++)
+                slice[i] = random.nextInt(range);
+        return(data);
+    }
+
+
+    @Test
+    public void medianMatchesSortedBox() {
+        float[][] data = randomData(new Random(5), 1000);
+        for (int r = 1; r <= 2; r++) {
+            ImageStack med = CpuFilters.median3DBox(stack(data), r).getStack();
+            float[] box = new float[(2*r+1)*(2*r+1)*(2*r+1)];
+            for (int z = 0; z < DEPTH; z++)
+                for (int y = 0; y < HEIGHT; y++)
+                    for (int x = 0; x < WIDTH; x++) {
+                        int n = 0;
+                        for (int dz = -r; dz <= r; dz++)
+                            for (int dy = -r; dy <= r; dy++)
+                                for (int dx = -r; dx <= r; dx++) {
+                                    int zz = Math.min(DEPTH-1, Math.max(0, z+dz));
+                                    int yy = Math.min(HEIGHT-1, Math.max(0, y+dy));
+                                    int xx = Math.min(WIDTH-1, Math.max(0, x+dx));
+                                    box[n++] = data[zz][yy*WIDTH + xx];
+                                }
+                        Arrays.sort(box);
+                        assertEquals("radius "+r, box[box.length/2], med.getProcessor(z+1).getf(y*WIDTH + x), 0);
+                    }
+        }
+    }
+
+
+    @Test
+    public void thresholdMatchesAutoThresholder() {
+        // two populations on integer values, min 0 and max 256 so that bins are 1 wide
+        Random random = new Random(9);
+        float[][] data = new float[DEPTH][WIDTH*HEIGHT];
+        for (float[] slice : data)
+            for (int i = 0; i < slice.length; i++)
+                slice[i] = random.nextInt(4) == 0 ? 150 + random.nextInt(100) : random.nextInt(80);
+        data[0][0] = 0;
+        data[DEPTH-1][1] = 256;
+        int[] histogram = new int[CpuFilters.HISTOGRAM_BINS];
+        for (float[] slice : data)
+            for (float v : slice)
+                histogram[Math.min(CpuFilters.HISTOGRAM_BINS-1, (int)v)]++;
+
+        for (String method : new String[] {"Default", "Huang", "Li", "MaxEntropy", "Otsu", "Triangle"}) {
+            int bin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram.clone());
+            float level = CpuFilters.thresholdLevel(data, method);
+            assertEquals(method, 10 + (bin + 1) * 0.5f, CpuFilters.levelFromHistogram(histogram.clone(), 10, 0.5f, method), 0);
+            // foreground is every voxel above the threshold bin
+            long expected = 0, found = 0;
+            for (int i = bin + 1; i < histogram.length; i++)
+                expected += histogram[i];
+            for (float[] slice : data)
+                for (float v : slice)
+                    if (v >= level)
+                        found++;
+            assertEquals(method, expected, found);
+        }
+    }
+
+
+    @Test
+    public void gaussianMatchesGaussianBlur3D() {
+        // smooth blobs, the two kernels then only differ by their truncation
+        Random random = new Random(11);
+        float[][] data = new float[DEPTH][WIDTH*HEIGHT];
+        float max = 0;
+        for (int b = 0; b < 6; b++) {
+            double cx = random.nextDouble()*WIDTH, cy = random.nextDouble()*HEIGHT, cz = random.nextDouble()*DEPTH;
+            double amplitude = 100 + random.nextInt(900);
+            for (int z = 0; z < DEPTH; z++)
+                for (int y = 0; y < HEIGHT; y++)
+                    for (int x = 0; x < WIDTH; x++) {
+                        double d2 = (x-cx)*(x-cx) + (y-cy)*(y-cy) + (z-cz)*(z-cz);
+                        data[z][y*WIDTH + x] += (float)(amplitude * Math.exp(-d2 / (2*4*4)));
+                        max = Math.max(max, data[z][y*WIDTH + x]);
+                    }
+        }
+        for (double sigma : new double[] {1, 2}) {
+            float[][] blurred = CpuFilters.gaussian3D(data, WIDTH, HEIGHT, sigma);
+            ImagePlus ref = stack(data);
+            GaussianBlur3D.blur(ref, sigma, sigma, sigma);
+            for (int z = 0; z < DEPTH; z++) {
+                float[] expected = (float[])ref.getStack().getPixels(z+1);
+                for (int i = 0; i < expected.length; i++)
+                    assertEquals("sigma "+sigma, expected[i], blurred[z][i], 5e-3*max);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package RNA_PECAM_DAPI_Tools;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Several nodes claiming the same images, each node is an ImageLeases with its own id
+ * @author phm
+ */
+public class ImageLeasesTest {
+
+    private static final String IMAGE = "/data/image1.nd";
+    private static final long OLD = 10*60000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+
+    private static void makeStale(File lease) {
+        assertTrue(lease.setLastModified(System.currentTimeMillis() - OLD));
+    }
+
+
+    private static String content(File lease) throws Exception {
+        return new String(Files.readAllBytes(lease.toPath()), StandardCharsets.UTF_8);
+    }
+
+
+    @Test
+    public void onlyOneNodeClaims() throws Exception {
+        File dir = tmp.newFolder("leases");
+        int nodes = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(nodes);
+        try {
+            for (int round = 0; round < 20; round++) {
+                File lease = new File(dir, "image1.lease");
+                // stale lease of a stopped node every other round
+                if (round % 2 == 1) {
+                    Files.write(lease.toPath(), "stopped 0".getBytes(StandardCharsets.UTF_8));
+                    makeStale(lease);
+                }
+                List<ImageLeases> leases = new ArrayList<>();
+                for (int n = 0; n < nodes; n++)
+                    leases.add(new ImageLeases(dir, 1, f -> false, "node"+n));
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> claims = new ArrayList<>();
+                for (ImageLeases node : leases)
+                    claims.add(pool.submit(() -> {
+                        start.await();
+                        return node.claim(IMAGE);
+                    }));
+                start.countDown();
+                int won = 0;
+                for (Future<Boolean> claim : claims)
+                    won += claim.get() ? 1 : 0;
+                assertEquals("round "+round, 1, won);
+                assertFalse(new File(dir, "image1.lease.takeover").exists());
+                for (ImageLeases node : leases)
+                    node.close();
+                assertFalse(lease.exists());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void ownerKeepsHandsOffLeaseTakenOver() throws Exception {
+        File dir = tmp.newFolder("leases");
+        File lease = new File(dir, "image1.lease");
+        try (ImageLeases a = new ImageLeases(dir, 1, f -> false, "a");
+                ImageLeases b = new ImageLeases(dir, 1, f -> false, "b")) {
+            assertTrue(a.claim(IMAGE));
+            assertFalse(b.claim(IMAGE));
+            // a stalled past the timeout, b takes over
+            makeStale(lease);
+            assertTrue(b.claim(IMAGE));
+            assertTrue(content(lease).startsWith("b "));
+
+            // a heartbeat must not refresh the lease of b
+            makeStale(lease);
+            long modified = lease.lastModified();
+            a.touchOwned();
+            assertEquals(modified, lease.lastModified());
+            // nor a release delete it
+            a.release(IMAGE);
+            assertTrue(lease.exists());
+            assertTrue(content(lease).startsWith("b "));
+
+            b.touchOwned();
+            assertTrue(lease.lastModified() > modified);
+            b.release(IMAGE);
+            assertFalse(lease.exists());
+        }
+    }
+
+
+    @Test
+    public void doneImageIsNotClaimed() throws Exception {
+        File dir = tmp.newFolder("leases");
+        try (ImageLeases a = new ImageLeases(dir, 1, f -> true, "a")) {
+            assertFalse(a.claim(IMAGE));
+            assertFalse(new File(dir, "image1.lease").exists());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.measure.Calibration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Slab labelling against a 26-connected flood fill of the same mask
+ * @author phm
+ */
+public class ParallelLabellerTest {
+
+    // width over one mask word, so rows span several words
+    private static final int WIDTH = 70, HEIGHT = 23, DEPTH = 11;
+
+
+    // voxel index, z major as the labeller raster order
+    private static long key(int x, int y, int z) {
+        return(((long)z*HEIGHT + y)*WIDTH + x);
+    }
+
+
+    /**
+     * Components by flood fill, each one as its voxel keys
+     */
+    private static Set<Set<Long>> floodFill(BitMask mask, int minVoxels) {
+        boolean[][] seen = new boolean[mask.depth][mask.width*mask.height];
+        Set<Set<Long>> components = new HashSet<>();
+        for (int z = 0; z < mask.depth; z++)
+            for (int y = 0; y < mask.height; y++)
+                for (int x = 0; x < mask.width; x++) {
+                    if (!mask.get(x, y, z) || seen[z][y*mask.width + x])
+                        continue;
+                    Set<Long> component = new HashSet<>();
+                    ArrayDeque<int[]> queue = new ArrayDeque<>();
+                    queue.add(new int[] {x, y, z});
+                    seen[z][y*mask.width + x] = true;
+                    while (!queue.isEmpty()) {
+                        int[] v = queue.poll();
+                        component.add(key(v[0], v[1], v[2]));
+                        for (int dz = -1; dz <= 1; dz++)
+                            for (int dy = -1; dy <= 1; dy++)
+                                for (int dx = -1; dx <= 1; dx++) {
+                                    int nx = v[0]+dx, ny = v[1]+dy, nz = v[2]+dz;
+                                    if (nx < 0 || ny < 0 || nz < 0 || nx >= mask.width || ny >= mask.height || nz >= mask.depth)
+                                        continue;
+                                    if (mask.get(nx, ny, nz) && !seen[nz][ny*mask.width + nx]) {
+                                        seen[nz][ny*mask.width + nx] = true;
+                                        queue.add(new int[] {nx, ny, nz});
+                                    }
+                                }
+                    }
+                    if (component.size() >= minVoxels)
+                        components.add(component);
+                }
+        return(components);
+    }
+
+
+    /**
+     * Objects as voxel keys, labels must follow the raster order of their first voxel
+     */
+    private static Set<Set<Long>> objects(Objects3DIntPopulation pop) {
+        Set<Set<Long>> objects = new HashSet<>();
+        List<Object3DInt> list = new ArrayList<>(pop.getObjects3DInt());
+        list.sort((a, b) -> Float.compare(a.getLabel(), b.getLabel()));
+        long previousFirst = -1;
+        for (Object3DInt obj : list) {
+            Set<Long> voxels = new HashSet<>();
+            long first = Long.MAX_VALUE;
+            for (Object3DPlane plane : obj.getObject3DPlanes())
+                for (VoxelInt v : plane.getVoxels()) {
+                    long k = key(v.getX(), v.getY(), v.getZ());
+                    assertTrue("voxel in two objects", voxels.add(k));
+                    first = Math.min(first, k);
+                }
+            assertTrue("labels out of raster order", first > previousFirst);
+            previousFirst = first;
+            objects.add(voxels);
+        }
+        return(objects);
+    }
+
+
+    private static void assertSameComponents(BitMask mask, int minVoxels) {
+        Set<Set<Long>> expected = floodFill(mask, minVoxels);
+        for (int slabs = 1; slabs <= mask.depth; slabs++) {
+            Objects3DIntPopulation pop = ParallelLabeller.label(mask, new Calibration(), minVoxels, Double.MAX_VALUE, slabs);
+            assertEquals(slabs+" slabs", expected, objects(pop));
+        }
+    }
+
+
+    @Test
+    public void randomMasksMatchFloodFill() {
+        Random random = new Random(42);
+        for (double density : new double[] {0.05, 0.2, 0.35}) {
+            BitMask mask = new BitMask(WIDTH, HEIGHT, DEPTH);
+            for (int z = 0; z < DEPTH; z++)
+                for (int y = 0; y < HEIGHT; y++)
+                    for (int x = 0; x < WIDTH; x++)
+                        if (random.nextDouble() < density)
+                            mask.set(x, y, z);
+            assertSameComponents(mask, 1);
+            assertSameComponents(mask, 3);
+        }
+    }
+
+
+    @Test
+    public void diagonalChainsAreOneObject() {
+        // chains touching only by corners, in z through every slab border and in xy within a slice
+        BitMask mask = new BitMask(WIDTH, HEIGHT, DEPTH);
+        for (int z = 0; z < DEPTH; z++)
+            mask.set(2 + z, 1 + z, z);
+        for (int z = 0; z < DEPTH; z++)
+            mask.set(60 - z, 20 - z, z);
+        for (int i = 0; i < 10; i++)
+            mask.set(30 + i, 2 + i, 5);
+        assertSameComponents(mask, 1);
+        Objects3DIntPopulation pop = ParallelLabeller.label(mask, new Calibration(), 0, Double.MAX_VALUE, DEPTH);
+        assertEquals(3, pop.getObjects3DInt().size());
+    }
+
+
+    @Test
+    public void objectsJoinedAcrossSlabs() {
+        // U shape whose branches only meet in the last slice
+        BitMask mask = new BitMask(WIDTH, HEIGHT, DEPTH);
+        for (int z = 0; z < DEPTH; z++) {
+            mask.set(10, 10, z);
+            mask.set(66, 10, z);
+        }
+        for (int x = 10; x <= 66; x++)
+            mask.set(x, 10, DEPTH - 1);
+        assertSameComponents(mask, 1);
+        Objects3DIntPopulation pop = ParallelLabeller.label(mask, new Calibration(), 0, Double.MAX_VALUE, DEPTH);
+        assertEquals(1, pop.getObjects3DInt().size());
+    }
+}
@@ -0,0 +1,128 @@
+package RNA_PECAM_DAPI_Tools;
+
+import ij.measure.Calibration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Tile labelling and stitching against the whole image labelling of the same mask
+ * @author phm
+ */
+public class TiledFociDetectorTest {
+
+    private static final int WIDTH = 83, HEIGHT = 61, DEPTH = 6;
+
+
+    // voxel index, z major
+    private static long key(int x, int y, int z) {
+        return(((long)z*HEIGHT + y)*WIDTH + x);
+    }
+
+
+    /**
+     * Objects as voxel sets, with the raw sum of each object
+     */
+    private static Map<Set<Long>, Double> objects(Iterable<Object3DInt> objects, float[][] raw) {
+        Map<Set<Long>, Double> sums = new HashMap<>();
+        for (Object3DInt obj : objects) {
+            Set<Long> voxels = new HashSet<>();
+            double sum = 0;
+            for (Object3DPlane plane : obj.getObject3DPlanes())
+                for (VoxelInt v : plane.getVoxels()) {
+                    voxels.add(key(v.getX(), v.getY(), v.getZ()));
+                    sum += raw[v.getZ()][v.getY()*WIDTH + v.getX()];
+                }
+            sums.put(voxels, sum);
+        }
+        return(sums);
+    }
+
+
+    /**
+     * Label the mask tile by tile and on the whole image, same objects and raw sums expected
+     */
+    private static void assertSameAsWholeImage(BitMask mask, float[][] raw, int tileSize, double minVol) throws Exception {
+        Calibration cal = new Calibration();
+        TiledFociDetector detector = new TiledFociDetector(WIDTH, HEIGHT, DEPTH, tileSize);
+        ObjectMeasurements tiled;
+        try (TiledFociDetector.MappedStack dog = detector.new MappedStack("dog");
+                TiledFociDetector.MappedStack rawStack = detector.new MappedStack("raw")) {
+            for (int z = 0; z < DEPTH; z++)
+                for (int y = 0; y < HEIGHT; y++)
+                    for (int x = 0; x < WIDTH; x++) {
+                        dog.row(z, y).put(dog.offset(y, x), mask.get(x, y, z) ? 1 : 0);
+                        rawStack.row(z, y).put(rawStack.offset(y, x), raw[z][y*WIDTH + x]);
+                    }
+            tiled = detector.label(dog, rawStack, 0.5f, cal, minVol, Double.MAX_VALUE);
+        }
+        Objects3DIntPopulation whole = ParallelLabeller.label(mask, cal, minVol, Double.MAX_VALUE);
+        Map<Set<Long>, Double> expected = objects(whole.getObjects3DInt(), raw);
+        assertEquals("tile "+tileSize, expected.keySet(), objects(tiled.objects, raw).keySet());
+        for (int i = 0; i < tiled.size; i++) {
+            Set<Long> voxels = objects(tiled.objects.subList(i, i+1), raw).keySet().iterator().next();
+            assertEquals(expected.get(voxels), tiled.intensitySum[0][i], 1e-3);
+            assertEquals(expected.get(voxels) / voxels.size(), tiled.intensityMean[0][i], 1e-6);
+        }
+    }
+
+
+    private static float[][] randomRaw(Random random) {
+        float[][] raw = new float[DEPTH][WIDTH*HEIGHT];
+        for (float[] slice : raw)
+            for (int i = 0; i < slice.length; i++)
+                slice[i] = random.nextInt(1000);
+        return(raw);
+    }
+
+
+    @Test
+    public void randomBlobsMatchWholeImage() throws Exception {
+        Random random = new Random(7);
+        float[][] raw = randomRaw(random);
+        BitMask mask = new BitMask(WIDTH, HEIGHT, DEPTH);
+        for (int b = 0; b < 80; b++) {
+            int cx = random.nextInt(WIDTH), cy = random.nextInt(HEIGHT), cz = random.nextInt(DEPTH), r = 1 + random.nextInt(5);
+            for (int z = Math.max(0, cz-1); z <= Math.min(DEPTH-1, cz+1); z++)
+                for (int y = Math.max(0, cy-r); y <= Math.min(HEIGHT-1, cy+r); y++)
+                    for (int x = Math.max(0, cx-r); x <= Math.min(WIDTH-1, cx+r); x++)
+                        if (random.nextInt(3) > 0)
+                            mask.set(x, y, z);
+        }
+        for (int tileSize : new int[] {16, 17, 29, 100}) {
+            assertSameAsWholeImage(mask, raw, tileSize, 0);
+            assertSameAsWholeImage(mask, raw, tileSize, 4);
+        }
+    }
+
+
+    @Test
+    public void objectsCrossingEdgesAndCorners() throws Exception {
+        float[][] raw = randomRaw(new Random(3));
+        BitMask mask = new BitMask(WIDTH, HEIGHT, DEPTH);
+        // diagonal through the corner of 4 tiles of 16, in one slice and across slices
+        for (int i = 12; i < 20; i++)
+            mask.set(i, i, 0);
+        for (int i = 0; i < DEPTH; i++)
+            mask.set(29 + i, 29 + i, i);
+        // row along a horizontal tile edge, spanning 4 tiles
+        for (int x = 5; x < 70; x++)
+            mask.set(x, 47, 2);
+        // column along a vertical tile edge, only joined by its last voxel
+        for (int y = 2; y < 40; y++)
+            mask.set(63, y, 4);
+        mask.set(64, 40, 5);
+        for (int tileSize : new int[] {16, 32}) {
+            assertSameAsWholeImage(mask, raw, tileSize, 0);
+        }
+    }
+}